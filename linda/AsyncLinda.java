@@ -0,0 +1,54 @@
+package linda;
+
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/** Asynchronous companion of {@link Linda}: every operation returns at once with a future of its result,
+ * so that a single thread may keep any number of operations in flight.
+ * A pending blocking operation (take, read) holds no thread; cancelling its future withdraws it,
+ * and a tuple taken meanwhile is put back.
+ * The dependent stages of a future, unless given an executor, run in the thread which completes it
+ * (e.g. the writer of the matching tuple): they should not block.
+ */
+public interface AsyncLinda {
+
+    /** Adds a tuple t to the tuplespace; the future completes once it has been added. */
+    public CompletableFuture<Void> writeAsync(Tuple t);
+
+    /** Adds all the tuples to the tuplespace, as a single batch (see {@link Linda#writeAll}). */
+    public CompletableFuture<Void> writeAllAsync(Collection<Tuple> tuples);
+
+    /** Returns the future of a tuple matching the template, removed from the tuplespace. */
+    public CompletableFuture<Tuple> takeAsync(Tuple template);
+
+    /** Returns the future of a tuple matching the template, left in the tuplespace. */
+    public CompletableFuture<Tuple> readAsync(Tuple template);
+
+    /** Returns the future of a tuple matching the template, removed from the tuplespace,
+     * which completes with null if no corresponding tuple was found before the timeout. */
+    public CompletableFuture<Tuple> takeAsync(Tuple template, long timeout, TimeUnit unit);
+
+    /** Returns the future of a tuple matching the template, left in the tuplespace,
+     * which completes with null if no corresponding tuple was found before the timeout. */
+    public CompletableFuture<Tuple> readAsync(Tuple template, long timeout, TimeUnit unit);
+
+    /** Returns the future of n tuples matching the template, removed from the tuplespace. */
+    public CompletableFuture<Collection<Tuple>> takeAsync(Tuple template, int n);
+
+    /** Asynchronous {@link Linda#tryTake(Tuple)}: completes with null if none found. */
+    public CompletableFuture<Tuple> tryTakeAsync(Tuple template);
+
+    /** Asynchronous {@link Linda#tryRead(Tuple)}: completes with null if none found. */
+    public CompletableFuture<Tuple> tryReadAsync(Tuple template);
+
+    /** Asynchronous {@link Linda#tryTake(Tuple, int)}. */
+    public CompletableFuture<Collection<Tuple>> tryTakeAsync(Tuple template, int n);
+
+    /** Asynchronous {@link Linda#takeAll(Tuple)}. */
+    public CompletableFuture<Collection<Tuple>> takeAllAsync(Tuple template);
+
+    /** Asynchronous {@link Linda#readAll(Tuple)}. */
+    public CompletableFuture<Collection<Tuple>> readAllAsync(Tuple template);
+
+}
@@ -1,23 +1,126 @@
 package linda;
 
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
 /** The class helps to transform a callback to behave asynchronously.
  * The callback fires exactly once.
  * The callback fires asynchronously with other threads and may do whatever it wants (it may block).
+ * The asynchronous calls are run by an executor: by default a shared one which starts a virtual thread
+ * per call when the JVM provides them (Java 21 and later), and otherwise reuses a pool of threads.
+ * Beware: virtual threads do not keep the JVM alive, a pending callback may be lost when the program exits.
  * @author philippe.queinnec@enseeiht.fr
  */
 public class AsynchronousCallback implements Callback {
-        
+
+    /** Callbacks submitted to their executor and not yet started. */
+    private static final AtomicInteger queued = new AtomicInteger();
+    /** Callbacks currently running. */
+    private static final AtomicInteger running = new AtomicInteger();
+    /** Callbacks which have completed (normally or not). */
+    private static final LongAdder completed = new LongAdder();
+
+    /** The default executor, created on first use. */
+    private static class Default {
+        static final Executor executor = defaultExecutor();
+    }
+
     private Callback cb;
+    private final Executor executor;
+
+    /** Runs the callback on the default executor. */
+    public AsynchronousCallback (Callback cb) { this(cb, null); }
+
+    /** Runs the callback on the given executor (e.g. one returned by {@link #boundedExecutor(int, int)}).
+     * @param cb the callback to make asynchronous.
+     * @param executor the executor running the calls, null for the default one.
+     */
+    public AsynchronousCallback (Callback cb, Executor executor) {
+        this.cb = cb;
+        this.executor = executor;
+    }
 
-    public AsynchronousCallback (Callback cb) { this.cb = cb; }
-        
     /** Asynchronous call: the associated callback is concurrently run and this one immediately returns.
+     * With a bounded executor whose queue is full, the call may run in the calling thread instead.
      * */
     public void call(final Tuple t) {
-        new Thread() {
+        queued.incrementAndGet();
+        Executor ex = (executor != null) ? executor : Default.executor;
+        try {
+            ex.execute(task(t));
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private Runnable task(final Tuple t) {
+        return new Runnable() {
             public void run() {
-                cb.call(t);
+                queued.decrementAndGet();
+                running.incrementAndGet();
+                try {
+                    cb.call(t);
+                } finally {
+                    running.decrementAndGet();
+                    completed.increment();
+                }
+            }
+        };
+    }
+
+    /** Returns the number of asynchronous calls waiting for a thread. */
+    public static int queuedCalls() {
+        return queued.get();
+    }
+
+    /** Returns the number of asynchronous calls currently running. */
+    public static int runningCalls() {
+        return running.get();
+    }
+
+    /** Returns the number of asynchronous calls which have completed. */
+    public static long completedCalls() {
+        return completed.sum();
+    }
+
+    /** Returns an executor running at most <code>threads</code> callbacks at once.
+     * At most <code>queueCapacity</code> calls wait for a thread; beyond that, a call runs in the thread
+     * which fires the callback, which slows down the producers of tuples rather than piling up calls.
+     * Idle threads terminate after a while.
+     * @param threads the maximum number of threads.
+     * @param queueCapacity the maximum number of waiting calls.
+     */
+    public static ExecutorService boundedExecutor(int threads, int queueCapacity) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS,
+                                                         new ArrayBlockingQueue<Runnable>(queueCapacity),
+                                                         threadFactory(),
+                                                         new ThreadPoolExecutor.CallerRunsPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /** A virtual thread per call if available, else a pool of reused threads. */
+    private static Executor defaultExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (Executor) m.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            // Java < 21: no virtual threads
+        }
+        // Idle threads terminate quickly, so that they do not delay the end of the program.
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 1, TimeUnit.SECONDS,
+                                      new SynchronousQueue<Runnable>(), threadFactory());
+    }
+
+    private static ThreadFactory threadFactory() {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "linda-callback-" + count.incrementAndGet());
             }
-        }.start();
+        };
     }
 }
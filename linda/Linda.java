@@ -1,6 +1,8 @@
 package linda;
 
 import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 /** Public interface to a Linda implementation.
  * @author philippe.queinnec@enseeiht.fr
@@ -10,6 +12,12 @@ public interface Linda {
     /** Adds a tuple t to the tuplespace. */
     public void write(Tuple t);
 
+    /** Adds all the tuples to the tuplespace, as a single batch.
+     * Equivalent to writing them one after the other, except that waiting readers and takers
+     * may see them in any order.
+     */
+    public void writeAll(Collection<Tuple> tuples);
+
     /** Returns a tuple matching the template and removes it from the tuplespace.
      * Blocks if no corresponding tuple is found. */
     public Tuple take(Tuple template);
@@ -18,6 +26,23 @@ public interface Linda {
      * Blocks if no corresponding tuple is found. */
     public Tuple read(Tuple template);
 
+    /** Returns a tuple matching the template and removes it from the tuplespace.
+     * Blocks at most for the given timeout; returns null if no corresponding tuple was found in time,
+     * or if the calling thread is interrupted while waiting (its interrupt status is then kept).
+     * Either way, the pending request is withdrawn: it will not consume a tuple later. */
+    public Tuple take(Tuple template, long timeout, TimeUnit unit);
+
+    /** Returns a tuple matching the template and leaves it in the tuplespace.
+     * Blocks at most for the given timeout; returns null if no corresponding tuple was found in time,
+     * or if the calling thread is interrupted while waiting (its interrupt status is then kept). */
+    public Tuple read(Tuple template, long timeout, TimeUnit unit);
+
+    /** Returns n tuples matching the template and removes them from the tuplespace.
+     * Blocks until n corresponding tuples have been found; the tuples already present are taken at once.
+     * If the calling thread is interrupted while waiting, returns the tuples taken so far.
+     */
+    public Collection<Tuple> take(Tuple template, int n);
+
     /** Returns a tuple matching the template and removes it from the tuplespace.
      * Returns null if none found. */
     public Tuple tryTake(Tuple template);
@@ -26,6 +51,11 @@ public interface Linda {
      * Returns null if none found. */
     public Tuple tryRead(Tuple template);
 
+    /** Returns at most n tuples matching the template and removes them from the tuplespace.
+     * Returns an empty collection if none found (never blocks).
+     */
+    public Collection<Tuple> tryTake(Tuple template, int n);
+
     /** Returns all the tuples matching the template and removes them from the tuplespace.
      * Returns an empty collection if none found (never blocks).
      * Note: there is no atomicity or consistency constraints between takeAll and other methods;
@@ -40,6 +70,16 @@ public interface Linda {
      */
     public Collection<Tuple> readAll(Tuple template);
 
+    /** Returns the tuples matching the template as a lazy stream, and leaves them in the tuplespace.
+     * The stream holds the tuples readAll would have returned when it was called, with the same weak consistency:
+     * tuples written or taken while it is consumed do not change it.
+     * Implementations should avoid building the whole result, so that a caller which only needs a few matches,
+     * or an aggregate, does not pay for all of them; the default implementation simply streams {@link #readAll(Tuple)}.
+     */
+    public default Stream<Tuple> readStream(Tuple template) {
+        return readAll(template).stream();
+    }
+
     public enum eventMode { READ, TAKE };
     public enum eventTiming { IMMEDIATE, FUTURE };
 
@@ -0,0 +1,144 @@
+package linda;
+
+import java.io.Serializable;
+import java.lang.reflect.Modifier;
+
+/** A template compiled once into one specialized test per component.
+ * Matching a tuple against a compiled template follows the rules of {@link Tuple#matches(Tuple)},
+ * but without re-examining the template components for each candidate tuple:
+ *  - a value component becomes an equality test;
+ *  - a final class (Integer, String...) becomes an exact class test;
+ *  - any other class becomes a subtype test, whose results are cached per pair of classes;
+ *  - a nested template is compiled recursively.
+ * Frozen templates keep their compiled form (see {@link #of(Tuple)}).
+ */
+public final class TemplateMatcher {
+
+    /** Test of one tuple component. */
+    private static abstract class Component {
+        abstract boolean matches(Serializable c);
+    }
+
+    /** Template component is a value: the tuple component must be equal. */
+    private static final class Equal extends Component {
+        private final Serializable value;
+        Equal(Serializable value) { this.value = value; }
+        boolean matches(Serializable c) {
+            return c != null && c.equals(value);
+        }
+    }
+
+    /** Template component is Object: anything matches. */
+    private static final class Any extends Component {
+        boolean matches(Serializable c) {
+            return c != null;
+        }
+    }
+
+    /** Template component is a final class: instances are of this exact class. */
+    private static final class Exact extends Component {
+        private final Class<?> type;
+        Exact(Class<?> type) { this.type = type; }
+        boolean matches(Serializable c) {
+            if (c instanceof Class)
+              return isAssignable(type, (Class<?>)c);
+            return c != null && c.getClass() == type;
+        }
+    }
+
+    /** Template component is a non-final class or an interface. */
+    private static final class Subtype extends Component {
+        private final Class<?> type;
+        Subtype(Class<?> type) { this.type = type; }
+        boolean matches(Serializable c) {
+            if (c == null)
+              return false;
+            if (c instanceof Class)
+              return isAssignable(type, (Class<?>)c);
+            return isAssignable(type, c.getClass());
+        }
+    }
+
+    /** Template component is itself a template. */
+    private static final class Nested extends Component {
+        private final TemplateMatcher matcher;
+        Nested(TemplateMatcher matcher) { this.matcher = matcher; }
+        boolean matches(Serializable c) {
+            return (c instanceof Tuple) && matcher.matches((Tuple)c);
+        }
+    }
+
+    /** Cache of Class.isAssignableFrom: for each template class, the answer for each tested class. */
+    private static final ClassValue<ClassValue<Boolean>> assignable = new ClassValue<ClassValue<Boolean>>() {
+        protected ClassValue<Boolean> computeValue(final Class<?> to) {
+            return new ClassValue<Boolean>() {
+                protected Boolean computeValue(Class<?> from) {
+                    return to.isAssignableFrom(from);
+                }
+            };
+        }
+    };
+
+    private static boolean isAssignable(Class<?> to, Class<?> from) {
+        return assignable.get(to).get(from);
+    }
+
+    private final Tuple template;
+    private final Component[] components;
+
+    private TemplateMatcher(Tuple template) {
+        this.template = template;
+        this.components = new Component[template.size()];
+        for (int i = 0; i < components.length; i++) {
+            components[i] = compile(template.get(i));
+        }
+    }
+
+    private static Component compile(Serializable c) {
+        if (c instanceof Tuple)
+          return new Nested(of((Tuple)c));
+        if (c instanceof Class) {
+            Class<?> type = (Class<?>)c;
+            if (type == Object.class)
+              return new Any();
+            if (Modifier.isFinal(type.getModifiers()) && !type.isArray())
+              return new Exact(type);
+            return new Subtype(type);
+        }
+        return new Equal(c);
+    }
+
+    /** Returns the compiled form of a template.
+     * The compiled form of a frozen template is computed once and kept with the template;
+     * a template that may still change is compiled on each call.
+     * @param template the template.
+     * @return the compiled template.
+     */
+    public static TemplateMatcher of(Tuple template) {
+        return template.matcher();
+    }
+
+    /** Compiles a template, without looking at any cached form. */
+    static TemplateMatcher compile(Tuple template) {
+        return new TemplateMatcher(template);
+    }
+
+    /** Returns the template this matcher was compiled from. */
+    public Tuple template() {
+        return template;
+    }
+
+    /** Returns true if the given tuple matches the template.
+     * @param tuple the tuple to test.
+     */
+    public boolean matches(Tuple tuple) {
+        final Component[] cs = components;
+        if (tuple.size() != cs.length)
+          return false;
+        for (int i = 0; i < cs.length; i++) {
+            if (! cs[i].matches(tuple.get(i)))
+              return false;
+        }
+        return true;
+    }
+}
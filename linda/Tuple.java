@@ -1,19 +1,41 @@
 package linda;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.StringTokenizer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /** Representation of a tuple.
+ * The components are held in a flat array, sized exactly once the tuple is frozen.
+ * A tuple may be frozen (see {@link #freeze()}): it then rejects any modification and can be shared without copy.
  * @author philippe.queinnec@enseeiht.fr
  */
-public class Tuple extends LinkedList<Serializable> implements Serializable {
+public class Tuple extends AbstractList<Serializable> implements RandomAccess, Serializable {
 
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 2L;
+
+    private static final Serializable[] EMPTY = new Serializable[0];
+
+    /** Classes whose instances never change: such components are shared, never copied. */
+    private static final Set<Class<?>> immutableClasses = ConcurrentHashMap.newKeySet();
+    static {
+        Collections.addAll(immutableClasses, String.class, Integer.class, Long.class, Short.class, Byte.class,
+                           Character.class, Boolean.class, Double.class, Float.class,
+                           BigInteger.class, BigDecimal.class, UUID.class, Class.class);
+    }
+
+    /** The components; only the first <code>size</code> slots are used. */
+    private transient Serializable[] components;
+    private transient int size;
+    /** True once the tuple has been frozen. */
+    private boolean frozen = false;
+    /** Cached hash code of a frozen tuple (0 if not computed yet). */
+    private transient int hash = 0;
+    /** Compiled form of a frozen tuple used as a template. */
+    private transient volatile TemplateMatcher matcher = null;
 
     /** Creates a new tuple.
      * Example :
@@ -21,26 +43,8 @@ public class Tuple extends LinkedList<Serializable> implements Serializable {
      * new Tuple(4, Integer.class, "foo".getclass(), Boolean.class)  -> [ 4 ?Integer ?String ?Boolean ]
      */
     public Tuple(Serializable... components) {
-        for (Serializable c : components) {
-            this.add(c);
-        }
-    }
-
-    private static boolean matches(Serializable thiscomponent, Serializable templatecomponent) {
-        if (templatecomponent instanceof Tuple) {
-            if (! (thiscomponent instanceof Tuple))
-              return false;
-            else
-              return ((Tuple)thiscomponent).matches((Tuple)templatecomponent);
-        } else if (templatecomponent instanceof Class) {
-            if (thiscomponent instanceof Class)
-              return ((Class<?>)templatecomponent).isAssignableFrom((Class<?>)thiscomponent);
-            else
-              return ((Class<?>) templatecomponent).isInstance(thiscomponent);
-        } else {
-            return thiscomponent.equals(templatecomponent);
-        }
-
+        this.components = components.length == 0 ? EMPTY : components.clone();
+        this.size = components.length;
     }
 
     /** Returns true if this tuple matches the given template.
@@ -55,20 +59,24 @@ public class Tuple extends LinkedList<Serializable> implements Serializable {
      *   [ 3 5 "foo" ] matches [ 3 5 "foo" ], [ ?Integer 5 "foo" ], [ ?Integer ?Integer ?String ]
      *   [ 3 ?Integer [ 6 7 ] [ 7 8 ] ] matches [ ?Integer ?Integer [ ?Integer 7 ] ?Tuple ], [3 ?Integer ?Tuple ?Tuple ]
      *
+     *   When the same template is compared to many tuples, compile it once with {@link TemplateMatcher#of(Tuple)}.
+     *
      *   @param template the template which this tuple is compared to.
      */
     public boolean matches(Tuple template) {
-        if (this.size() != template.size())
-          return false;
-        Iterator<Serializable> itthis = this.iterator();
-        Iterator<Serializable> itmotif = template.iterator();
-        while (itthis.hasNext()) {
-            Serializable othis = itthis.next();
-            Serializable omotif = itmotif.next();
-            if (! matches(othis, omotif))
-              return false;
+        return TemplateMatcher.of(template).matches(this);
+    }
+
+    /** Returns the compiled form of this tuple seen as a template; kept once the tuple is frozen. */
+    TemplateMatcher matcher() {
+        if (! frozen)
+          return TemplateMatcher.compile(this);
+        TemplateMatcher m = matcher;
+        if (m == null) {
+            m = TemplateMatcher.compile(this);
+            matcher = m;
         }
-        return true;
+        return m;
     }
 
     /** Returns true if this tuple (seen as a template) contains <code>t</code>.
@@ -79,19 +87,107 @@ public class Tuple extends LinkedList<Serializable> implements Serializable {
 
     /**
      * Returns a deep copy of the tuple.
+     * The copy is not frozen.
      * @return a deep copy of this object
      */
-    /* Les éléments types sont représentés par des instances de Class, qui n'est pas cloneable.
-     * Le plus simple de passer par une sérialisation/desérialisation ce qui marche pour toutes les classes qui implantent serializable.
+    /* Les tuples imbriqués sont recopiés, les composants immuables (valeurs, types) sont partagés.
+     * Seuls les autres composants passent par un codage/décodage (TupleCodec), ce qui marche pour toutes les classes qui implantent serializable.
      */
     public Tuple deepclone() {
-        Tuple copy = null;
+        return copy(false);
+    }
+
+    /** Registers a class whose instances are immutable.
+     * Components of such a class are shared between a tuple and its copies instead of being copied.
+     * Strings, boxed primitives, classes and enums are already known as immutable.
+     * @param c the immutable class.
+     */
+    public static void registerImmutable(Class<? extends Serializable> c) {
+        immutableClasses.add(c);
+    }
+
+    /** Freezes this tuple and its nested tuples: any further modification throws UnsupportedOperationException.
+     * A frozen tuple may be safely shared, e.g. stored in a tuplespace without copy.
+     * @return this tuple.
+     */
+    public Tuple freeze() {
+        if (! frozen) {
+            for (int i = 0; i < size; i++) {
+                if (components[i] instanceof Tuple)
+                  ((Tuple)components[i]).freeze();
+            }
+            if (components.length != size)
+              components = Arrays.copyOf(components, size);
+            frozen = true;
+        }
+        return this;
+    }
+
+    /** Returns true if this tuple is frozen. */
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /** Returns a frozen tuple equal to this one and sharing nothing mutable with it.
+     * If this tuple is frozen and only holds immutable components, it is returned as is.
+     * Otherwise a structural copy is made: nested tuples are copied, immutable components are shared,
+     * and only the remaining (mutable) components are deep-copied.
+     * @return a frozen tuple equal to this one.
+     */
+    public Tuple frozenCopy() {
+        if (frozen && isImmutable())
+          return this;
+        return copy(true).freeze();
+    }
+
+    /** Returns true if this tuple is frozen and all its components (recursively) are immutable. */
+    private boolean isImmutable() {
+        if (! frozen)
+          return false;
+        for (int i = 0; i < size; i++) {
+            Serializable c = components[i];
+            if (c instanceof Tuple) {
+                if (! ((Tuple)c).isImmutable())
+                  return false;
+            } else if (! isImmutable(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isImmutable(Serializable c) {
+        return c == null || c instanceof Enum || immutableClasses.contains(c.getClass());
+    }
+
+    /** Structural copy: nested tuples are copied, immutable components shared, other components deep-copied.
+     * @param share true to share the frozen nested tuples holding only immutable components.
+     */
+    private Tuple copy(boolean share) {
+        Serializable[] cs = new Serializable[size];
+        for (int i = 0; i < size; i++) {
+            Serializable c = components[i];
+            if (c instanceof Tuple) {
+                Tuple t = (Tuple)c;
+                cs[i] = (share && t.isImmutable()) ? t : t.copy(share);
+            } else if (isImmutable(c)) {
+                cs[i] = c;
+            } else {
+                cs[i] = deepcopy(c);
+            }
+        }
+        Tuple copy = new Tuple();
+        copy.components = cs;
+        copy.size = cs.length;
+        return copy;
+    }
+
+    /* Dernier recours pour les composants dont on ne sait rien : un codage/décodage du seul composant
+     * (voir TupleCodec, qui n'utilise la sérialisation Java que pour les types non enregistrés). */
+    private static Serializable deepcopy(Serializable c) {
+        Serializable copy = null;
         try {
-            ByteArrayOutputStream buf = new ByteArrayOutputStream();
-            ObjectOutputStream out = new ObjectOutputStream (buf);
-            out.writeObject (this);
-            ObjectInputStream in = new ObjectInputStream (new ByteArrayInputStream (buf.toByteArray()));
-            copy = (Tuple) in.readObject();
+            copy = TupleCodec.copy(c);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -194,4 +290,109 @@ public class Tuple extends LinkedList<Serializable> implements Serializable {
         return res;
     }
 
+    /* Accès aux composants : un tableau plat plutôt qu'une liste chaînée. */
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Serializable get(int index) {
+        Objects.checkIndex(index, size);
+        return components[index];
+    }
+
+    /* Toutes les modifications passent par add, set et remove(int) : un tuple gelé les refuse. */
+
+    private void checkMutable() {
+        if (frozen)
+          throw new UnsupportedOperationException("Frozen tuple " + this);
+    }
+
+    @Override
+    public void add(int index, Serializable e) {
+        checkMutable();
+        Objects.checkIndex(index, size + 1);
+        if (size == components.length)
+          components = Arrays.copyOf(components, Math.max(4, size * 2));
+        System.arraycopy(components, index, components, index + 1, size - index);
+        components[index] = e;
+        size++;
+        modCount++;
+    }
+
+    @Override
+    public Serializable set(int index, Serializable e) {
+        checkMutable();
+        Objects.checkIndex(index, size);
+        Serializable old = components[index];
+        components[index] = e;
+        return old;
+    }
+
+    @Override
+    public Serializable remove(int index) {
+        checkMutable();
+        Objects.checkIndex(index, size);
+        Serializable old = components[index];
+        System.arraycopy(components, index + 1, components, index, size - index - 1);
+        components[--size] = null;
+        modCount++;
+        return old;
+    }
+
+    /** Returns a shallow copy of this tuple. The copy is not frozen. */
+    @Override
+    public Object clone() {
+        return new Tuple(Arrays.copyOf(components, size));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this)
+          return true;
+        if (! (o instanceof Tuple))
+          return super.equals(o);
+        Tuple t = (Tuple)o;
+        if (t.size != size)
+          return false;
+        for (int i = 0; i < size; i++) {
+            if (! Objects.equals(components[i], t.components[i]))
+              return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0 || ! frozen) {
+            h = 1;
+            for (int i = 0; i < size; i++) {
+                h = 31 * h + Objects.hashCode(components[i]);
+            }
+            if (frozen)
+              hash = h;
+        }
+        return h;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeObject(components[i]);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        size = in.readInt();
+        components = size == 0 ? EMPTY : new Serializable[size];
+        for (int i = 0; i < size; i++) {
+            components[i] = (Serializable) in.readObject();
+        }
+    }
+
 }
@@ -0,0 +1,334 @@
+package linda;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Compact binary encoding of tuples, used instead of Java serialization wherever tuples are stored or sent.
+ * A tuple is written as its number of components followed by each component: a one-byte tag, then its value.
+ *  - Integer, Long and Character are variable-length integers (small values take one or two bytes);
+ *  - Boolean is the tag alone; String is its length then its UTF-8 bytes;
+ *  - a Class is one byte for the common ones (Integer, String, Tuple...), otherwise its name;
+ *  - an enum constant is its class name and constant name; a nested tuple is encoded recursively;
+ *  - a type registered with {@link #register} is written by its own writer after its identifier;
+ *  - any other Serializable falls back to Java serialization of the component alone.
+ * Example: [ 4 5 ] takes 5 bytes, against more than a hundred with ObjectOutputStream.
+ * Custom identifiers are written in the encoded data: they must stay the same between the programs
+ * (and the runs, for persisted tuples) which exchange tuples.
+ */
+public final class TupleCodec {
+
+    /** Writes a value of a registered type. */
+    public interface ValueWriter<T> {
+        void write(T value, DataOutput out) throws IOException;
+    }
+
+    /** Reads a value of a registered type, consuming exactly what the writer wrote. */
+    public interface ValueReader<T> {
+        T read(DataInput in) throws IOException;
+    }
+
+    private static final int NULL = 0, INT = 1, LONG = 2, FALSE = 3, TRUE = 4, CHAR = 5, STRING = 6,
+                             KNOWN_CLASS = 7, CLASS = 8, TUPLE = 9, ENUM = 10, DOUBLE = 11, CUSTOM = 12, SERIALIZED = 13;
+
+    /** Classes encoded by their index in this table. */
+    private static final Class<?>[] knownClasses = {
+        Integer.class, String.class, Long.class, Boolean.class, Character.class, Tuple.class,
+        Double.class, Object.class, Serializable.class, Void.class
+    };
+
+    private static final class Custom<T> {
+        final int id;
+        final Class<T> type;
+        final ValueWriter<T> writer;
+        final ValueReader<T> reader;
+        Custom(int id, Class<T> type, ValueWriter<T> writer, ValueReader<T> reader) {
+            this.id = id;
+            this.type = type;
+            this.writer = writer;
+            this.reader = reader;
+        }
+    }
+
+    private static final Map<Class<?>, Custom<?>> customByType = new ConcurrentHashMap<>();
+    private static final Map<Integer, Custom<?>> customById = new ConcurrentHashMap<>();
+    /** Classes already resolved by name. */
+    private static final Map<String, Class<?>> classes = new ConcurrentHashMap<>();
+
+    private TupleCodec() {}
+
+    /** Registers a compact encoding for the instances of a class (not of its subclasses).
+     * Registering again the same class with the same identifier replaces its writer and reader.
+     * @param id the identifier written before each value, non negative.
+     * @param type the class of the values.
+     * @param writer writes a value.
+     * @param reader reads a value back.
+     * @throws IllegalArgumentException if the identifier or the class is already used by another registration.
+     */
+    public static synchronized <T extends Serializable> void register(int id, Class<T> type,
+                                                                     ValueWriter<T> writer, ValueReader<T> reader) {
+        if (id < 0)
+          throw new IllegalArgumentException("Negative identifier " + id);
+        Custom<?> byId = customById.get(id);
+        Custom<?> byType = customByType.get(type);
+        if ((byId != null && byId.type != type) || (byType != null && byType.id != id))
+          throw new IllegalArgumentException("Codec " + id + " for " + type.getName() + " conflicts with a previous registration");
+        Custom<T> custom = new Custom<>(id, type, writer, reader);
+        customById.put(id, custom);
+        customByType.put(type, custom);
+    }
+
+    /** Returns the encoding of a tuple. */
+    public static byte[] encode(Tuple tuple) {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(16 + 8 * tuple.size());
+        try {
+            write(tuple, new DataOutputStream(buf));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot encode " + tuple, e);
+        }
+        return buf.toByteArray();
+    }
+
+    /** Returns the tuple encoded in <code>bytes</code> (not frozen). */
+    public static Tuple decode(byte[] bytes) throws IOException {
+        return read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    /** Writes a tuple. */
+    public static void write(Tuple tuple, DataOutput out) throws IOException {
+        writeVarInt(out, tuple.size());
+        for (int i = 0; i < tuple.size(); i++) {
+            writeValue(tuple.get(i), out);
+        }
+    }
+
+    /** Reads a tuple (not frozen). */
+    public static Tuple read(DataInput in) throws IOException {
+        int size = readVarInt(in);
+        Serializable[] components = new Serializable[size];
+        for (int i = 0; i < size; i++) {
+            components[i] = readValue(in);
+        }
+        return new Tuple(components);
+    }
+
+    /** Writes a single value, e.g. the component of a custom type that has no registered encoding. */
+    public static void writeValue(Serializable value, DataOutput out) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof Integer) {
+            out.writeByte(INT);
+            writeVarLong(out, zigzag((Integer)value));
+        } else if (value instanceof String) {
+            byte[] bytes = ((String)value).getBytes(StandardCharsets.UTF_8);
+            out.writeByte(STRING);
+            writeVarInt(out, bytes.length);
+            out.write(bytes);
+        } else if (value instanceof Tuple) {
+            out.writeByte(TUPLE);
+            write((Tuple)value, out);
+        } else if (value instanceof Class) {
+            Class<?> c = (Class<?>)value;
+            for (int i = 0; i < knownClasses.length; i++) {
+                if (knownClasses[i] == c) {
+                    out.writeByte(KNOWN_CLASS);
+                    out.writeByte(i);
+                    return;
+                }
+            }
+            out.writeByte(CLASS);
+            writeString(out, c.getName());
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            writeVarLong(out, zigzag((Long)value));
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean)value ? TRUE : FALSE);
+        } else if (value instanceof Character) {
+            out.writeByte(CHAR);
+            writeVarInt(out, (Character)value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double)value);
+        } else if (value instanceof Enum) {
+            out.writeByte(ENUM);
+            writeString(out, ((Enum<?>)value).getDeclaringClass().getName());
+            writeString(out, ((Enum<?>)value).name());
+        } else {
+            Custom<?> custom = customByType.get(value.getClass());
+            if (custom != null) {
+                out.writeByte(CUSTOM);
+                writeVarInt(out, custom.id);
+                writeCustom(custom, value, out);
+            } else {
+                ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                try (ObjectOutputStream oos = new ObjectOutputStream(buf)) {
+                    oos.writeObject(value);
+                }
+                out.writeByte(SERIALIZED);
+                writeVarInt(out, buf.size());
+                out.write(buf.toByteArray());
+            }
+        }
+    }
+
+    /** Reads a single value written by {@link #writeValue}. */
+    public static Serializable readValue(DataInput in) throws IOException {
+        int tag = in.readUnsignedByte();
+        switch (tag) {
+        case NULL:
+            return null;
+        case INT:
+            return (int) unzigzag(readVarLong(in));
+        case LONG:
+            return unzigzag(readVarLong(in));
+        case FALSE:
+            return false;
+        case TRUE:
+            return true;
+        case CHAR:
+            return (char) readVarInt(in);
+        case STRING:
+            return readString(in);
+        case KNOWN_CLASS: {
+            int i = in.readUnsignedByte();
+            if (i >= knownClasses.length)
+              throw new StreamCorruptedException("Unknown class index " + i);
+            return knownClasses[i];
+        }
+        case CLASS:
+            return classForName(readString(in));
+        case TUPLE:
+            return read(in);
+        case ENUM:
+            return enumValue(classForName(readString(in)), readString(in));
+        case DOUBLE:
+            return in.readDouble();
+        case CUSTOM: {
+            int id = readVarInt(in);
+            Custom<?> custom = customById.get(id);
+            if (custom == null)
+              throw new StreamCorruptedException("No codec registered with identifier " + id);
+            return (Serializable) custom.reader.read(in);
+        }
+        case SERIALIZED: {
+            byte[] bytes = new byte[readVarInt(in)];
+            in.readFully(bytes);
+            try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                return (Serializable) ois.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+        }
+        default:
+            throw new StreamCorruptedException("Unknown tag " + tag);
+        }
+    }
+
+    /** Returns a deep copy of a value, through its encoding. */
+    public static Serializable copy(Serializable value) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        writeValue(value, new DataOutputStream(buf));
+        return readValue(new DataInputStream(new ByteArrayInputStream(buf.toByteArray())));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> void writeCustom(Custom<T> custom, Object value, DataOutput out) throws IOException {
+        custom.writer.write((T) value, out);
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static Serializable enumValue(Class<?> c, String name) throws IOException {
+        if (! c.isEnum())
+          throw new StreamCorruptedException(c.getName() + " is not an enum");
+        return (Serializable) Enum.valueOf((Class<? extends Enum>) c, name);
+    }
+
+    private static Class<?> classForName(String name) throws IOException {
+        Class<?> c = classes.get(name);
+        if (c == null) {
+            try {
+                ClassLoader loader = Thread.currentThread().getContextClassLoader();
+                c = Class.forName(name, false, loader != null ? loader : TupleCodec.class.getClassLoader());
+            } catch (ClassNotFoundException e) {
+                c = primitive(name);
+                if (c == null)
+                  throw new IOException(e);
+            }
+            classes.put(name, c);
+        }
+        return c;
+    }
+
+    private static Class<?> primitive(String name) {
+        for (Class<?> c : new Class<?>[] { int.class, long.class, boolean.class, char.class, double.class,
+                                           float.class, short.class, byte.class, void.class }) {
+            if (c.getName().equals(name))
+              return c;
+        }
+        return null;
+    }
+
+    private static void writeString(DataOutput out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /* Entiers de longueur variable : 7 bits par octet, le bit de poids fort indique qu'un octet suit.
+     * Les entiers signés passent d'abord par le codage « zigzag », qui rend les petites valeurs négatives courtes. */
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static void writeVarInt(DataOutput out, int v) throws IOException {
+        writeVarLong(out, v & 0xFFFFFFFFL);
+    }
+
+    private static int readVarInt(DataInput in) throws IOException {
+        long v = readVarLong(in);
+        if (v < 0 || v > Integer.MAX_VALUE)
+          throw new StreamCorruptedException("Invalid length " + v);
+        return (int) v;
+    }
+
+    private static void writeVarLong(DataOutput out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) (v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    private static long readVarLong(DataInput in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+              return v;
+        }
+        throw new StreamCorruptedException("Variable-length integer too long");
+    }
+}
@@ -0,0 +1,22 @@
+package linda.legacy;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.LinkedList;
+
+/** Former representation of a tuple, as a linked list.
+ * Only used to read back tuples serialized before {@link linda.Tuple} became array-backed:
+ * each one is replaced by an equivalent {@link linda.Tuple} as soon as it is read.
+ */
+public class Tuple extends LinkedList<Serializable> {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Present in the streams written by frozen tuples. */
+    private boolean frozen;
+
+    private Object readResolve() throws ObjectStreamException {
+        linda.Tuple t = new linda.Tuple(this.toArray(new Serializable[0]));
+        return frozen ? t.freeze() : t;
+    }
+}
@@ -0,0 +1,85 @@
+package linda.server;
+
+import linda.Tuple;
+import linda.TupleCodec;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** Consistent hashing of tuples over shards (see {@link ShardedLindaClient}).
+ * The key of a tuple is its arity and its first <code>keyFields</code> fields; every shard owns many points
+ * of a ring of 64-bit hashes, and a key belongs to the shard owning the first point at or after its hash.
+ * Adding or removing a shard thus moves only the keys of its own points.
+ * Keys are hashed from their {@link TupleCodec} encoding, so that all the clients, in whatever JVM,
+ * route a tuple to the same shard.
+ */
+final class ConsistentHash<S> {
+
+    /** Points of each shard on the ring. */
+    static final int POINTS = 128;
+
+    private final TreeMap<Long, S> ring = new TreeMap<>();
+    private final int keyFields;
+
+    /** @param shards the shards, by name: the names, not the order, place them on the ring. */
+    ConsistentHash(Map<String, S> shards, int keyFields) {
+        if (keyFields < 1)
+          throw new IllegalArgumentException("keyFields must be at least 1");
+        this.keyFields = keyFields;
+        for (Map.Entry<String, S> shard : shards.entrySet()) {
+            for (int i = 0; i < POINTS; i++) {
+                ring.put(hash((shard.getKey() + "#" + i).getBytes(StandardCharsets.UTF_8)), shard.getValue());
+            }
+        }
+    }
+
+    /** Returns the shard owning a tuple. */
+    S owner(Tuple t) {
+        int n = Math.min(keyFields, t.size());
+        Serializable[] fields = new Serializable[n + 1];
+        fields[0] = t.size();
+        for (int i = 0; i < n; i++) {
+            fields[i + 1] = t.get(i);
+        }
+        Tuple key = new Tuple(fields);
+        Map.Entry<Long, S> point = ring.ceilingEntry(hash(TupleCodec.encode(key)));
+        return (point != null ? point : ring.firstEntry()).getValue();
+    }
+
+    /** Returns the shard owning all the tuples a template matches, or null if they may be anywhere:
+     * the key fields of the template must all be values the codec encodes by itself (Integer, Long, String,
+     * Boolean, Character, Double or an enum constant), whose equal values have equal encodings.
+     * Any other value may equal one encoded, and so placed, differently: an instance of another class
+     * (an ArrayList a LinkedList), or one whose custom or serialized form depends on more than its equality.
+     */
+    S route(Tuple template) {
+        for (int i = 0; i < Math.min(keyFields, template.size()); i++) {
+            if (!isNative(template.get(i)))
+              return null;
+        }
+        return owner(template);
+    }
+
+    /** Whether {@link TupleCodec} encodes a value by itself, the same for all the values equal to it. */
+    private static boolean isNative(Object field) {
+        return field instanceof Integer || field instanceof Long || field instanceof String || field instanceof Boolean
+            || field instanceof Character || field instanceof Double || field instanceof Enum;
+    }
+
+    /** FNV-1a, then a finalizer to spread close hashes over the ring. */
+    private static long hash(byte[] bytes) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
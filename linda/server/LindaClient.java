@@ -1,68 +1,673 @@
 package linda.server;
 
+import linda.AsyncLinda;
 import linda.Callback;
 import linda.Linda;
 import linda.Tuple;
+import linda.TupleCodec;
 
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /** Client part of a client/server implementation of Linda.
  * It implements the Linda interface and propagates everything to the server it is connected to.
+ * A single connection is shared by all the threads of the client: every request carries an id,
+ * a reader thread hands each response to the request of the same id, so that any number of operations,
+ * blocking ones included, may be outstanding at once (see {@link Protocol}).
+ * The {@link AsyncLinda} methods do not wait for the response: requests are pipelined, the server runs them
+ * in order, and consecutive writes are coalesced into a single frame.
+ * Optionally, the results of tryRead and readAll are kept in a near cache, which the server invalidates
+ * (see {@link NearCache}): repeated polls of tuples which seldom change are then served locally.
  * */
-public class LindaClient implements Linda {
-	
+public class LindaClient implements Linda, AsyncLinda, Closeable {
+
+    /** Largest number of coalesced writes sent as one frame. */
+    public static final int MAX_BATCH = 1024;
+
+    private final SocketChannel channel;
+    private final Object writeLock = new Object();
+    private final AtomicLong ids = new AtomicLong();
+    /** Outstanding requests, by id. */
+    private final Map<Long, CompletableFuture<Protocol.Frame>> pending = new ConcurrentHashMap<>();
+    /** Registered events, by id of their registration. */
+    private final Map<Long, Callback> events = new ConcurrentHashMap<>();
+    /** Runs the callbacks one after the other, in the order the server fired them. */
+    private final ExecutorService callbacks = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "linda-client-callback");
+        t.setDaemon(true);
+        return t;
+    });
+    /** Sends the coalesced writes. */
+    private final ExecutorService flusher = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "linda-client-flusher");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Object batchLock = new Object();
+    /** Writes waiting to be sent, encoded, and their futures. */
+    private List<byte[]> batch = new ArrayList<>();
+    private List<CompletableFuture<Void>> batched = new ArrayList<>();
+    /** Cached results of tryRead and readAll, null if disabled. */
+    private final NearCache cache;
+    private volatile IOException failure;
+
     /** Initializes the Linda implementation.
-     *  @param serverURI the URI of the server, e.g. "rmi://localhost:4000/LindaServer" or "//localhost:4000/LindaServer".
+     *  @param serverURI the URI of the server, e.g. "//localhost:4000/LindaServer" or "localhost:4000".
      */
     public LindaClient(String serverURI) {
-        // TO BE COMPLETED
+        this(serverURI, 0);
+    }
+
+    /** Initializes the Linda implementation, with a near cache.
+     *  The tuples returned by tryRead and readAll are then frozen.
+     *  @param serverURI the URI of the server, e.g. "//localhost:4000/LindaServer" or "localhost:4000".
+     *  @param nearCacheSize the maximum number of cached results (template and operation), 0 for no cache;
+     *  the cached results hold at most 65536 tuples in all.
+     */
+    public LindaClient(String serverURI, int nearCacheSize) {
+        this.cache = nearCacheSize > 0 ? new NearCache(nearCacheSize) : null;
+        URI uri = address(serverURI);
+        try {
+            this.channel = SocketChannel.open(new InetSocketAddress(uri.getHost(), uri.getPort()));
+            this.channel.socket().setTcpNoDelay(true);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Thread reader = new Thread(this::receive, "linda-client-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /** Returns the address of a server, e.g. "//localhost:4000" for "rmi://localhost:4000/LindaServer". */
+    static URI address(String serverURI) {
+        URI uri = URI.create(serverURI.contains("//") ? serverURI : "//" + serverURI);
+        if (uri.getHost() == null || uri.getPort() < 0)
+          throw new IllegalArgumentException("No host:port in " + serverURI);
+        return URI.create("//" + uri.getHost() + ":" + uri.getPort());
+    }
+
+    /** Dispatches the responses, until the connection is lost. */
+    private void receive() {
+        try {
+            DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+            while (true) {
+                int length = in.readInt();
+                if (length < Protocol.HEADER || length > Protocol.MAX_FRAME)
+                  throw new IOException("Invalid frame length " + length);
+                byte[] body = new byte[length];
+                in.readFully(body);
+                Protocol.Frame f = new Protocol.Frame(body);
+                if (f.op == Protocol.INVALIDATE) {
+                    cache.invalidate(f.id);
+                    continue;
+                }
+                if (f.op == Protocol.EVENT) {
+                    Callback cb = events.remove(f.id);
+                    Tuple t = Protocol.readTuple(f.in);
+                    if (cb != null)
+                      callbacks.execute(() -> cb.call(t));
+                    continue;
+                }
+                CompletableFuture<Protocol.Frame> request = pending.remove(f.id);
+                if (request != null)
+                  request.complete(f);
+                else if (f.op == Protocol.OK)
+                  events.remove(f.id); // withdrawn registration
+                else if (f.op == Protocol.ERROR && events.remove(f.id) != null)
+                  System.err.println("Event registration failed: " + f.in.readUTF());
+                else if (f.op == Protocol.ERROR && cache != null)
+                  cache.invalidate(f.id); // failed watch
+            }
+        } catch (IOException e) {
+            failure = e;
+            // Invalidations may be lost
+            if (cache != null)
+              cache.clear();
+            for (Long id : pending.keySet()) {
+                CompletableFuture<Protocol.Frame> request = pending.remove(id);
+                if (request != null)
+                  request.completeExceptionally(new UncheckedIOException(e));
+            }
+        }
+    }
+
+    /** Sends a request and waits for its response. */
+    private Protocol.Frame call(Protocol.FrameWriter request) {
+        return await(send(request));
+    }
+
+    /** Sends a request, after the writes waiting to be sent so that it sees them.
+     * @return the future response, failed with an {@link IllegalStateException} if the server reports an error.
+     */
+    private CompletableFuture<Protocol.Frame> send(Protocol.FrameWriter request) {
+        CompletableFuture<Protocol.Frame> response = new CompletableFuture<>();
+        pending.put(request.id, response);
+        try {
+            ByteBuffer frame = request.toBuffer();
+            synchronized (writeLock) {
+                flushWrites();
+                transmit(frame);
+            }
+        } catch (IOException e) {
+            pending.remove(request.id);
+            response.completeExceptionally(new UncheckedIOException(e));
+        }
+        // The reader may have failed before the request was registered
+        if (failure != null && pending.remove(request.id) != null)
+          response.completeExceptionally(new UncheckedIOException(failure));
+        return response.thenApply(LindaClient::checked);
+    }
+
+    /** Sends a request which has no response, after the writes waiting to be sent. */
+    private void post(Protocol.FrameWriter request) throws IOException {
+        ByteBuffer frame = request.toBuffer();
+        synchronized (writeLock) {
+            flushWrites();
+            transmit(frame);
+        }
+    }
+
+    /** Writes a frame; the caller holds writeLock. */
+    private void transmit(ByteBuffer frame) throws IOException {
+        while (frame.hasRemaining()) {
+            channel.write(frame);
+        }
+    }
+
+    /** Sends the coalesced writes as one frame; the caller holds writeLock. */
+    private void flushWrites() {
+        List<byte[]> tuples;
+        List<CompletableFuture<Void>> written;
+        synchronized (batchLock) {
+            if (batch.isEmpty())
+              return;
+            tuples = batch;
+            written = batched;
+            batch = new ArrayList<>();
+            batched = new ArrayList<>();
+        }
+        long id = ids.incrementAndGet();
+        CompletableFuture<Protocol.Frame> response = new CompletableFuture<>();
+        response.thenApply(LindaClient::checked).whenComplete((f, e) -> {
+            for (CompletableFuture<Void> w : written) {
+                if (e == null)
+                  w.complete(null);
+                else
+                  w.completeExceptionally(cause(e));
+            }
+        });
+        pending.put(id, response);
+        try {
+            // Same frame as Protocol.writeTuples, from the encodings
+            Protocol.FrameWriter request = new Protocol.FrameWriter(id, Protocol.WRITE_ALL);
+            request.writeInt(tuples.size());
+            for (byte[] t : tuples) {
+                request.write(t);
+            }
+            transmit(request.toBuffer());
+        } catch (IOException e) {
+            pending.remove(id);
+            response.completeExceptionally(new UncheckedIOException(e));
+        }
+        if (failure != null && pending.remove(id) != null)
+          response.completeExceptionally(new UncheckedIOException(failure));
+    }
+
+    /** Sends the coalesced writes now, from the flusher thread. */
+    private void flushWritesNow() {
+        synchronized (writeLock) {
+            flushWrites();
+        }
+    }
+
+    private static Protocol.Frame checked(Protocol.Frame f) {
+        if (f.op == Protocol.ERROR) {
+            try {
+                throw new IllegalStateException(f.in.readUTF());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return f;
+    }
+
+    /** Waits for a result, rethrowing the failure of the operation.
+     * An interrupt does not stop the wait (the operation is under way), its status is kept.
+     */
+    static <T> T await(CompletableFuture<T> response) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return response.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+              throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            if (interrupted)
+              Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Waits for the result of a blocking request (see {@link #withdrawable}).
+     * @return the result, null if the calling thread was interrupted: the request is then withdrawn
+     * and its interrupt status kept.
+     */
+    static <T> T awaitOrWithdraw(CompletableFuture<T> response) {
+        try {
+            return response.get();
+        } catch (InterruptedException e) {
+            if (response.cancel(false)) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            return await(response);
+        } catch (ExecutionException e) {
+            return await(response);
+        }
+    }
+
+    private Protocol.FrameWriter request(byte op) {
+        return new Protocol.FrameWriter(ids.incrementAndGet(), op);
+    }
+
+    private Protocol.FrameWriter request(byte op, Tuple template) {
+        try {
+            return request(op).tuple(template);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private static Tuple tuple(Protocol.Frame f) {
+        try {
+            return Protocol.readTuple(f.in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Collection<Tuple> tuples(Protocol.Frame f) {
+        try {
+            return Protocol.readTuples(f.in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static Throwable cause(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
+
+    /** Sends a blocking request. Cancelling the returned future withdraws the wait from the server;
+     * tuples the server had taken meanwhile are written back.
+     * @param parse reads the result from the response.
+     * @param giveBack writes back the result of a cancelled request, null if nothing was taken.
+     */
+    private <T> CompletableFuture<T> withdrawable(Protocol.FrameWriter request, Function<Protocol.Frame, T> parse,
+                                                  Consumer<T> giveBack) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        send(request).whenComplete((f, e) -> {
+            if (e != null) {
+                result.completeExceptionally(cause(e));
+                return;
+            }
+            T value;
+            try {
+                value = parse.apply(f);
+            } catch (RuntimeException x) {
+                result.completeExceptionally(x);
+                return;
+            }
+            if (!result.complete(value) && giveBack != null && value != null)
+              giveBack.accept(value);
+        });
+        long id = request.id;
+        result.whenComplete((v, e) -> {
+            if (result.isCancelled())
+              cancel(id);
+        });
+        return result;
+    }
+
+    /** Asks the server to withdraw the wait, watch or event registration of a request. */
+    void cancel(long id) {
+        Protocol.FrameWriter request = request(Protocol.CANCEL);
+        try {
+            request.writeLong(id);
+            synchronized (writeLock) {
+                transmit(request.toBuffer());
+            }
+        } catch (IOException e) {
+            // connection lost: the server abandons the wait
+        }
     }
 
     @Override
     public void write(Tuple t) {
+        CompletableFuture<Void> written = writeAsync(t);
+        flushWritesNow();
+        await(written);
+    }
 
+    @Override
+    public void writeAll(Collection<Tuple> tuples) {
+        await(writeAllAsync(tuples));
     }
 
     @Override
     public Tuple take(Tuple template) {
-        return null;
+        return awaitOrWithdraw(takeAsync(template));
+    }
+
+    @Override
+    public Tuple take(Tuple template, long timeout, TimeUnit unit) {
+        return awaitOrWithdraw(takeAsync(template, timeout, unit));
+    }
+
+    @Override
+    public Tuple read(Tuple template, long timeout, TimeUnit unit) {
+        return awaitOrWithdraw(readAsync(template, timeout, unit));
+    }
+
+    @Override
+    public Collection<Tuple> take(Tuple template, int n) {
+        Collection<Tuple> tuples = awaitOrWithdraw(takeAsync(template, n));
+        return tuples != null ? tuples : new ArrayList<>();
     }
 
     @Override
     public Tuple read(Tuple template) {
-        return null;
+        return awaitOrWithdraw(readAsync(template));
     }
 
     @Override
     public Tuple tryTake(Tuple template) {
-        return null;
+        return await(tryTakeAsync(template));
+    }
+
+    @Override
+    public Collection<Tuple> tryTake(Tuple template, int n) {
+        return await(tryTakeAsync(template, n));
     }
 
     @Override
     public Tuple tryRead(Tuple template) {
-        return null;
+        return await(tryReadAsync(template));
     }
 
     @Override
     public Collection<Tuple> takeAll(Tuple template) {
-        return null;
+        return await(takeAllAsync(template));
     }
 
     @Override
     public Collection<Tuple> readAll(Tuple template) {
-        return null;
+        return await(readAllAsync(template));
+    }
+
+    /** Queues the tuple to be written: writes issued in a row, by one or several threads,
+     * go to the server as a single frame (at most {@link #MAX_BATCH} tuples), sent by a flusher thread
+     * or by the next request, whichever comes first.
+     * The tuple is encoded at once: changing it afterwards does not change what is written,
+     * and a tuple which cannot be encoded only fails its own future.
+     */
+    @Override
+    public CompletableFuture<Void> writeAsync(Tuple t) {
+        if (t == null)
+          throw new IllegalArgumentException("null tuple");
+        byte[] encoded;
+        try {
+            encoded = TupleCodec.encode(t);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        changed(List.of(t));
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        boolean first, full;
+        synchronized (batchLock) {
+            first = batch.isEmpty();
+            batch.add(encoded);
+            batched.add(written);
+            full = batch.size() >= MAX_BATCH;
+        }
+        if (full)
+          flushWritesNow();
+        else if (first)
+          flusher.execute(this::flushWritesNow);
+        return written;
+    }
+
+    @Override
+    public CompletableFuture<Void> writeAllAsync(Collection<Tuple> tuples) {
+        changed(tuples);
+        Protocol.FrameWriter request = request(Protocol.WRITE_ALL);
+        try {
+            Protocol.writeTuples(request, tuples);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+        return send(request).thenApply(f -> null);
+    }
+
+    @Override
+    public CompletableFuture<Tuple> takeAsync(Tuple template) {
+        return withdrawable(request(Protocol.TAKE, template), LindaClient::tuple, this::writeAsync);
+    }
+
+    @Override
+    public CompletableFuture<Tuple> readAsync(Tuple template) {
+        return withdrawable(request(Protocol.READ, template), LindaClient::tuple, null);
+    }
+
+    @Override
+    public CompletableFuture<Tuple> takeAsync(Tuple template, long timeout, TimeUnit unit) {
+        return timed(Protocol.TAKE_TIMED, template, timeout, unit);
+    }
+
+    @Override
+    public CompletableFuture<Tuple> readAsync(Tuple template, long timeout, TimeUnit unit) {
+        return timed(Protocol.READ_TIMED, template, timeout, unit);
+    }
+
+    private CompletableFuture<Tuple> timed(byte op, Tuple template, long timeout, TimeUnit unit) {
+        Protocol.FrameWriter request = request(op, template);
+        try {
+            request.writeLong(Math.max(0, unit.toNanos(timeout)));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return withdrawable(request, LindaClient::tuple, op == Protocol.TAKE_TIMED ? this::writeAsync : null);
+    }
+
+    @Override
+    public CompletableFuture<Collection<Tuple>> takeAsync(Tuple template, int n) {
+        return withdrawable(takeN(Protocol.TAKE_N, template, n), LindaClient::tuples, this::writeAllAsync);
+    }
+
+    private Protocol.FrameWriter takeN(byte op, Tuple template, int n) {
+        Protocol.FrameWriter request = request(op, template);
+        try {
+            request.writeInt(n);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return request;
+    }
+
+    @Override
+    public CompletableFuture<Tuple> tryTakeAsync(Tuple template) {
+        return send(request(Protocol.TRY_TAKE, template)).thenApply(LindaClient::tuple);
+    }
+
+    @Override
+    public CompletableFuture<Tuple> tryReadAsync(Tuple template) {
+        if (cache != null)
+          return cached(request(Protocol.TRY_READ, template), template, LindaClient::tuple, t -> (Tuple) t);
+        return send(request(Protocol.TRY_READ, template)).thenApply(LindaClient::tuple);
+    }
+
+    @Override
+    public CompletableFuture<Collection<Tuple>> tryTakeAsync(Tuple template, int n) {
+        return send(takeN(Protocol.TRY_TAKE_N, template, n)).thenApply(LindaClient::tuples);
     }
 
+    @Override
+    public CompletableFuture<Collection<Tuple>> takeAllAsync(Tuple template) {
+        return send(request(Protocol.TAKE_ALL, template)).thenApply(LindaClient::tuples);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<Collection<Tuple>> readAllAsync(Tuple template) {
+        if (cache != null)
+          return cached(request(Protocol.READ_ALL, template), template, LindaClient::tuples,
+                        tuples -> new ArrayList<>((Collection<Tuple>) tuples));
+        return send(request(Protocol.READ_ALL, template)).thenApply(LindaClient::tuples);
+    }
+
+    /** Runs a read through the near cache. On a miss, the template is watched before the read is sent:
+     * the server runs them in order, so any later change of the result invalidates it.
+     * @param parse reads the result from the response.
+     * @param copy returns the result of a hit from the cached value.
+     */
+    private <T> CompletableFuture<T> cached(Protocol.FrameWriter request, Tuple template,
+                                            Function<Protocol.Frame, T> parse, Function<Object, T> copy) {
+        Object hit = cache.get(request.op, template);
+        if (hit != NearCache.MISS)
+          return CompletableFuture.completedFuture(copy.apply(hit));
+        long watch = ids.incrementAndGet();
+        List<Long> evicted = new ArrayList<>();
+        boolean reserved = template != null && cache.reserve(request.op, template, watch, evicted);
+        for (long id : evicted) {
+            cancel(id);
+        }
+        if (!reserved)
+          return send(request).thenApply(parse);
+        Protocol.FrameWriter watching = new Protocol.FrameWriter(watch, Protocol.WATCH);
+        try {
+            watching.tuple(template);
+            post(watching);
+        } catch (IOException e) {
+            cache.invalidate(watch);
+            return send(request).thenApply(parse);
+        }
+        return send(request).thenApply(parse).handle((result, e) -> {
+            if (e != null) {
+                cache.invalidate(watch);
+                cancel(watch);
+                throw new CompletionException(cause(e));
+            }
+            Object value = NearCache.frozen(result);
+            List<Long> dropped = new ArrayList<>();
+            cache.fill(watch, value, dropped);
+            for (long id : dropped) {
+                cancel(id);
+            }
+            return copy.apply(value);
+        });
+    }
+
+    /** Drops the cached results which tuples written by this client may change: they do not wait
+     * for the invalidation from the server, which comes once the write has been sent and run. */
+    private void changed(Collection<Tuple> tuples) {
+        if (cache == null)
+          return;
+        List<Long> dropped = new ArrayList<>();
+        cache.changed(tuples, dropped);
+        for (long id : dropped) {
+            cancel(id);
+        }
+    }
+
+    /** Returns the number of reads served by the near cache. */
+    public long nearCacheHits() {
+        return cache != null ? cache.hits() : 0;
+    }
+
+    /** Returns the number of reads the near cache had to send to the server. */
+    public long nearCacheMisses() {
+        return cache != null ? cache.misses() : 0;
+    }
+
+    /** Registers the callback without waiting for the server: a registration is a one-way message,
+     * and all the firings of the client's callbacks are pushed on its connection, tagged with
+     * the id of their registration. The callbacks run one at a time, in firing order, in a thread of the client:
+     * a callback which blocks for long should be wrapped in an {@link linda.AsynchronousCallback}.
+     */
     @Override
     public void eventRegister(eventMode mode, eventTiming timing, Tuple template, Callback callback) {
+        register(mode, timing, template, callback);
+    }
 
+    /** Registers an event, see {@link #eventRegister}.
+     * @return the id of the registration, to withdraw it with {@link #cancel(long)}: the server then
+     * acknowledges it, unless it has already fired.
+     */
+    long register(eventMode mode, eventTiming timing, Tuple template, Callback callback) {
+        Protocol.FrameWriter request = request(Protocol.EVENT_REGISTER);
+        try {
+            request.writeByte(mode.ordinal());
+            request.writeByte(timing.ordinal());
+            request.tuple(template);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+        // Registered before sending: the server does not acknowledge, the event may come at once
+        events.put(request.id, callback);
+        try {
+            post(request);
+        } catch (IOException e) {
+            events.remove(request.id);
+            throw new UncheckedIOException(e);
+        }
+        return request.id;
     }
 
     @Override
     public void debug(String prefix) {
-
+        Protocol.FrameWriter request = request(Protocol.DEBUG);
+        try {
+            request.writeUTF(prefix);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        call(request);
     }
 
-    // TO BE COMPLETED
+    /** Closes the connection; pending operations fail, the server abandons their waits. */
+    @Override
+    public void close() throws IOException {
+        flushWritesNow();
+        channel.close();
+        callbacks.shutdown();
+        flusher.shutdown();
+    }
 
 }
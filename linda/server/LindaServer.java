@@ -0,0 +1,586 @@
+package linda.server;
+
+import linda.Callback;
+import linda.Linda.eventMode;
+import linda.Linda.eventTiming;
+import linda.Tuple;
+import linda.shm.CentralizedLinda;
+import linda.shm.DirectCallback;
+import linda.shm.LogStore;
+import linda.shm.Subscription;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/** Server part of the client/server implementation of Linda: serves a {@link CentralizedLinda} to {@link LindaClient}s.
+ * One selector thread does all the network I/O of all the clients, with non-blocking channels.
+ * Complete frames (see {@link Protocol}) are handed to a small pool of workers which run the operations,
+ * those of a connection one after the other;
+ * blocking operations (take, read) never hold a thread while they wait: they are registered as events
+ * on the tuplespace, and their callback sends the answer. A client's waits are abandoned when it disconnects,
+ * and a tuple taken for a client which has gone is written back.
+ */
+public class LindaServer implements Closeable {
+
+    private final CentralizedLinda linda;
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    /** Runs the operations. */
+    private final ExecutorService workers;
+    /** Gives up timed waits. */
+    private final ScheduledExecutorService timers;
+    /** Connections with frames to send. */
+    private final Queue<Connection> flushing = new ConcurrentLinkedQueue<>();
+    private final Thread loop;
+    private volatile boolean closed = false;
+
+    /** Serves a tuplespace on a TCP port.
+     * @param linda the tuplespace.
+     * @param port the port, 0 for any free port (see {@link #port()}).
+     */
+    public LindaServer(CentralizedLinda linda, int port) throws IOException {
+        this.linda = linda;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        this.server.bind(new InetSocketAddress(port), 1024);
+        this.server.configureBlocking(false);
+        this.server.register(selector, SelectionKey.OP_ACCEPT);
+        this.workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), threads("linda-server-worker-"));
+        ScheduledThreadPoolExecutor timers = new ScheduledThreadPoolExecutor(1, threads("linda-server-timer-"));
+        // The timer of a wait which fires is cancelled: it must not stay queued until its deadline
+        timers.setRemoveOnCancelPolicy(true);
+        this.timers = timers;
+        this.loop = new Thread(this::run, "linda-server-selector");
+    }
+
+    /** Starts serving. */
+    public void start() {
+        loop.start();
+    }
+
+    /** Returns the port the server listens to. */
+    public int port() {
+        return server.socket().getLocalPort();
+    }
+
+    /** Stops serving and disconnects the clients. The tuplespace is left as is. */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        try {
+            loop.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        workers.shutdown();
+        timers.shutdown();
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                selector.select();
+                Connection c;
+                while ((c = flushing.poll()) != null) {
+                    if (c.key.isValid())
+                      c.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid())
+                      continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection conn = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable())
+                          conn.read();
+                        if (key.isValid() && key.isWritable())
+                          conn.flush();
+                    } catch (IOException e) {
+                        conn.close();
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection)
+                  ((Connection) key.attachment()).close();
+            }
+            try {
+                selector.close();
+                server.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection conn = new Connection(channel);
+            conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+        }
+    }
+
+    /** A client connection. Its I/O is done by the selector thread only; any thread may send it a frame. */
+    private final class Connection {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+        private final Queue<Outgoing> out = new ConcurrentLinkedQueue<>();
+        /** Pending waits and watches of this client, by request id. */
+        private final Map<Long, Subscription> waits = new ConcurrentHashMap<>();
+        /** Received requests, not run yet. */
+        private final Queue<Protocol.Frame> requests = new ConcurrentLinkedQueue<>();
+        /** Whether a worker is running the requests. */
+        private final AtomicBoolean running = new AtomicBoolean();
+        private volatile boolean closed = false;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /** Reads what is available and hands the complete frames to the workers. */
+        void read() throws IOException {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            in.flip();
+            while (in.remaining() >= 4) {
+                int length = in.getInt(in.position());
+                if (length < Protocol.HEADER || length > Protocol.MAX_FRAME)
+                  throw new IOException("Invalid frame length " + length);
+                if (in.remaining() < 4 + length) {
+                    if (4 + length > in.capacity()) {
+                        ByteBuffer larger = ByteBuffer.allocate(4 + length);
+                        larger.put(in);
+                        in = larger;
+                        return;
+                    }
+                    break;
+                }
+                in.getInt();
+                byte[] body = new byte[length];
+                in.get(body);
+                requests.add(new Protocol.Frame(body));
+                if (running.compareAndSet(false, true))
+                  workers.execute(this::serve);
+            }
+            in.compact();
+        }
+
+        /** Runs the requests in the order they came: a pipelining client sees its writes
+         * in the operations which follow them. Waits are only registered, so they do not hold the others back. */
+        void serve() {
+            do {
+                Protocol.Frame f;
+                while ((f = requests.poll()) != null) {
+                    handle(this, f);
+                }
+                running.set(false);
+                // A request queued after the last poll, while still running, is served here
+            } while (!requests.isEmpty() && running.compareAndSet(false, true));
+        }
+
+        /** Sends what the channel accepts without blocking. */
+        void flush() throws IOException {
+            Outgoing next;
+            while ((next = out.peek()) != null) {
+                channel.write(next.frame);
+                if (next.frame.hasRemaining())
+                  return;
+                out.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            // A frame queued meanwhile must not wait for the next read
+            if (!out.isEmpty())
+              key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        /** Queues a frame.
+         * @return false if the client has gone.
+         */
+        boolean send(ByteBuffer frame) {
+            return send(frame, List.of());
+        }
+
+        /** Queues a frame carrying tuples taken for the client: if the client goes before the frame is sent,
+         * they go back to the space.
+         * @return false if the client has gone: the tuples are then the caller's.
+         */
+        boolean send(ByteBuffer frame, Collection<Tuple> taken) {
+            synchronized (this) {
+                if (closed)
+                  return false;
+                out.add(new Outgoing(frame, taken));
+            }
+            flushing.add(this);
+            selector.wakeup();
+            return true;
+        }
+
+        void close() {
+            synchronized (this) {
+                if (closed)
+                  return;
+                closed = true;
+            }
+            // Nothing is queued any more: the tuples of the frames not sent go back
+            List<Tuple> unsent = new ArrayList<>();
+            for (Outgoing o : out) {
+                unsent.addAll(o.taken);
+            }
+            out.clear();
+            if (!unsent.isEmpty())
+              workers.execute(() -> linda.writeAll(unsent));
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // already gone
+            }
+            // A wait that cannot be abandoned has fired: its callback sees the connection closed
+            for (Subscription s : waits.values()) {
+                s.cancel();
+            }
+            waits.clear();
+        }
+    }
+
+    /** A frame to send, and the tuples taken for the client it carries. */
+    private static final class Outgoing {
+        final ByteBuffer frame;
+        final Collection<Tuple> taken;
+
+        Outgoing(ByteBuffer frame, Collection<Tuple> taken) {
+            this.frame = frame;
+            this.taken = taken;
+        }
+    }
+
+    /** Runs a request, on a worker. */
+    private void handle(Connection c, Protocol.Frame f) {
+        DataInputStream in = f.in;
+        try {
+            switch (f.op) {
+            case Protocol.WRITE:
+                linda.write(Protocol.readTuple(in));
+                c.send(Protocol.frame(f.id, Protocol.OK));
+                break;
+            case Protocol.WRITE_ALL:
+                linda.writeAll(Protocol.readTuples(in));
+                c.send(Protocol.frame(f.id, Protocol.OK));
+                break;
+            case Protocol.TAKE:
+                await(c, f.id, eventMode.TAKE, Protocol.readTuple(in), -1);
+                break;
+            case Protocol.READ:
+                await(c, f.id, eventMode.READ, Protocol.readTuple(in), -1);
+                break;
+            case Protocol.TAKE_TIMED: {
+                Tuple template = Protocol.readTuple(in);
+                await(c, f.id, eventMode.TAKE, template, in.readLong());
+                break;
+            }
+            case Protocol.READ_TIMED: {
+                Tuple template = Protocol.readTuple(in);
+                await(c, f.id, eventMode.READ, template, in.readLong());
+                break;
+            }
+            case Protocol.TAKE_N: {
+                Tuple template = Protocol.readTuple(in);
+                new TakeN(c, f.id, template, in.readInt()).next();
+                break;
+            }
+            case Protocol.TRY_TAKE: {
+                Tuple t = linda.tryTake(Protocol.readTuple(in));
+                if (!c.send(Protocol.tupleFrame(f.id, Protocol.TUPLE, t), t != null ? List.of(t) : List.of()) && t != null)
+                  linda.write(t);
+                break;
+            }
+            case Protocol.TRY_READ:
+                c.send(Protocol.tupleFrame(f.id, Protocol.TUPLE, linda.tryRead(Protocol.readTuple(in))));
+                break;
+            case Protocol.TRY_TAKE_N: {
+                Tuple template = Protocol.readTuple(in);
+                sendTuples(c, f.id, linda.tryTake(template, in.readInt()), true);
+                break;
+            }
+            case Protocol.TAKE_ALL:
+                sendTuples(c, f.id, linda.takeAll(Protocol.readTuple(in)), true);
+                break;
+            case Protocol.READ_ALL:
+                sendTuples(c, f.id, linda.readAll(Protocol.readTuple(in)), false);
+                break;
+            case Protocol.EVENT_REGISTER: {
+                eventMode mode = eventMode.values()[in.readByte()];
+                eventTiming timing = eventTiming.values()[in.readByte()];
+                Tuple template = Protocol.readTuple(in);
+                // No acknowledgement: the event frame, pushed on the connection, carries the id of the registration.
+                // A withdrawn registration is acknowledged, for the client to forget its callback.
+                watch(c, f.id, mode, timing, template, t -> Protocol.tupleFrame(f.id, Protocol.EVENT, t),
+                      () -> c.send(Protocol.frame(f.id, Protocol.OK)));
+                break;
+            }
+            case Protocol.WATCH: {
+                long id = f.id;
+                AtomicBoolean fired = new AtomicBoolean();
+                Subscription s = linda.watch(Protocol.readTuple(in), (DirectCallback) t -> {
+                    fired.set(true);
+                    c.waits.remove(id);
+                    c.send(Protocol.frame(id, Protocol.INVALIDATE));
+                });
+                c.waits.put(id, s);
+                if (fired.get())
+                  c.waits.remove(id);
+                else if (c.closed)
+                  s.cancel();
+                break;
+            }
+            case Protocol.CANCEL: {
+                Subscription s = c.waits.remove(in.readLong());
+                if (s != null)
+                  s.cancel();
+                break;
+            }
+            case Protocol.DEBUG:
+                linda.debug(in.readUTF());
+                c.send(Protocol.frame(f.id, Protocol.OK));
+                break;
+            default:
+                throw new IOException("Unknown opcode " + f.op);
+            }
+        } catch (IOException | RuntimeException e) {
+            try {
+                Protocol.FrameWriter error = new Protocol.FrameWriter(f.id, Protocol.ERROR);
+                error.writeUTF(String.valueOf(e));
+                c.send(error.toBuffer());
+            } catch (IOException ignored) {
+                // unreachable: written in memory
+            }
+        }
+    }
+
+    private void sendTuples(Connection c, long id, Collection<Tuple> tuples, boolean taken) {
+        if (!c.send(Protocol.tuplesFrame(id, Protocol.TUPLES, tuples), taken ? tuples : List.of()) && taken)
+          linda.writeAll(tuples);
+    }
+
+    /** Waits for a tuple on behalf of a client, without holding a thread.
+     * A withdrawn wait (timeout, cancel request) is answered with null.
+     * @param nanos the timeout, negative to wait forever.
+     */
+    private void await(Connection c, long id, eventMode mode, Tuple template, long nanos) {
+        AtomicReference<Future<?>> timer = new AtomicReference<>();
+        Subscription s = watch(c, id, mode, eventTiming.IMMEDIATE, template,
+                               t -> {
+                                   // Fired before its deadline: the timer has nothing left to do
+                                   Future<?> deadline = timer.get();
+                                   if (deadline != null)
+                                     deadline.cancel(false);
+                                   return Protocol.tupleFrame(id, Protocol.TUPLE, t);
+                               },
+                               () -> c.send(Protocol.tupleFrame(id, Protocol.TUPLE, null)));
+        if (nanos >= 0) {
+            Future<?> deadline = timers.schedule(() -> {
+                if (s.cancel())
+                  c.waits.remove(id);
+            }, nanos, TimeUnit.NANOSECONDS);
+            timer.set(deadline);
+            // Fired, or abandoned, before the timer was set
+            if (!c.waits.containsKey(id))
+              deadline.cancel(false);
+        }
+    }
+
+    /** Registers an event whose firing sends a frame to the client, and which is abandoned if the client goes.
+     * @param answer builds the frame from the tuple.
+     * @param withdrawn run if the event is withdrawn before it fires.
+     * @return the subscription, which runs withdrawn when cancelled.
+     */
+    private Subscription watch(Connection c, long id, eventMode mode, eventTiming timing, Tuple template,
+                               Function<Tuple, ByteBuffer> answer, Runnable withdrawn) {
+        AtomicBoolean fired = new AtomicBoolean();
+        // Only queues a frame: called by the writer itself, so that the frames keep the firing order
+        DirectCallback cb = t -> {
+            fired.set(true);
+            c.waits.remove(id);
+            // Taken for a client which has gone: the tuple goes back to the space
+            Collection<Tuple> taken = mode == eventMode.TAKE ? List.of(t) : List.of();
+            if (!c.send(answer.apply(t), taken) && mode == eventMode.TAKE)
+              linda.write(t);
+        };
+        Subscription event = linda.subscribe(mode, timing, template, cb);
+        Subscription s = () -> {
+            if (!event.cancel())
+              return false;
+            withdrawn.run();
+            return true;
+        };
+        c.waits.put(id, s);
+        // Fired, or the client left, in the meantime
+        if (fired.get())
+          c.waits.remove(id);
+        else if (c.closed)
+          s.cancel();
+        return s;
+    }
+
+    /** A blocking take of n tuples: the available ones first, then one wait after the other. */
+    private final class TakeN implements Callback {
+        private final Connection c;
+        private final long id;
+        private final Tuple template;
+        private final int n;
+        private final List<Tuple> taken = new ArrayList<>();
+
+        TakeN(Connection c, long id, Tuple template, int n) {
+            this.c = c;
+            this.id = id;
+            this.template = template;
+            this.n = n;
+        }
+
+        void next() {
+            if (taken.isEmpty())
+              taken.addAll(linda.tryTake(template, n));
+            if (taken.size() >= n) {
+                sendTuples(c, id, taken, true);
+                return;
+            }
+            int before = taken.size();
+            Subscription event = linda.subscribe(eventMode.TAKE, eventTiming.IMMEDIATE, template, this);
+            // Withdrawn: the tuples taken so far go back, the client gets none
+            Subscription s = () -> {
+                if (!event.cancel())
+                  return false;
+                linda.writeAll(taken);
+                c.send(Protocol.tuplesFrame(id, Protocol.TUPLES, List.of()));
+                return true;
+            };
+            synchronized (this) {
+                if (taken.size() == before)
+                  c.waits.put(id, s);
+            }
+            if (c.closed)
+              s.cancel();
+        }
+
+        @Override
+        public void call(Tuple t) {
+            synchronized (this) {
+                c.waits.remove(id);
+                taken.add(t);
+            }
+            if (c.closed)
+              linda.writeAll(taken);
+            else
+              next();
+        }
+    }
+
+    private static ThreadFactory threads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /** Starts a server.
+     * Usage: LindaServer port [backup file] [-replicas port [-semisync]] [-follow host:port]
+     * <ul>
+     * <li><code>port</code>: the port clients connect to;</li>
+     * <li><code>backup file</code>: where the tuples are saved (default ./.linda_backup); an existing one is loaded
+     * in the background, and each arity is served once loaded (replication waits for the whole load);</li>
+     * <li><code>-replicas port</code>: backups may follow this server on that port (see {@link ReplicationPrimary});</li>
+     * <li><code>-semisync</code>: with <code>-replicas</code>, commits wait for one backup, at most one second;</li>
+     * <li><code>-follow host:port</code>: this server is first the backup of the primary replicating there,
+     * and only serves clients once that primary has been silent for three seconds (see {@link ReplicationBackup}).</li>
+     * </ul>
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        List<String> files = new ArrayList<>();
+        int replicas = -1;
+        boolean semiSync = false;
+        String follow = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-replicas") && i + 1 < args.length)
+              replicas = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-semisync"))
+              semiSync = true;
+            else if (args[i].equals("-follow") && i + 1 < args.length)
+              follow = args[++i];
+            else
+              files.add(args[i]);
+        }
+        if (files.isEmpty()) {
+            System.err.println("Usage: LindaServer port [backup file] [-replicas port [-semisync]] [-follow host:port]");
+            System.exit(1);
+        }
+        String backup = files.size() > 1 ? files.get(1) : "./.linda_backup";
+        LogStore store = new LogStore(backup);
+        CentralizedLinda linda = new CentralizedLinda(store);
+        if (Files.exists(Paths.get(backup))) {
+            // Clients are served meanwhile, each arity once it is loaded
+            linda.loadAsync(backup).whenComplete((v, e) -> {
+                if (e != null)
+                  System.err.println("Linda server: loading " + backup + " failed: " + e);
+                else
+                  System.out.println("Linda server loaded " + backup);
+            });
+        }
+        if (follow != null) {
+            ReplicationBackup follower = new ReplicationBackup(linda, follow);
+            System.out.println("Linda server following " + follow);
+            follower.awaitPrimaryLoss(3, TimeUnit.SECONDS);
+            follower.close();
+            System.out.println("Primary lost at record " + follower.applied() + ", taking over");
+        }
+        if (replicas >= 0) {
+            ReplicationPrimary primary = new ReplicationPrimary(linda, store, replicas, semiSync, 1, TimeUnit.SECONDS);
+            System.out.println("Linda server replicating on port " + primary.port() + (semiSync ? " (semi-synchronous)" : ""));
+        }
+        LindaServer server = new LindaServer(linda, Integer.parseInt(files.get(0)));
+        server.start();
+        System.out.println("Linda server listening on port " + server.port());
+    }
+}
@@ -0,0 +1,233 @@
+package linda.server;
+
+import linda.TemplateMatcher;
+import linda.Tuple;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** Near cache of a {@link LindaClient}: results of tryRead and readAll, by template.
+ * Every entry is backed by a watch on the server (see {@link Protocol#WATCH}), whose id is the id of the entry:
+ * the first write or take of a tuple matching the template invalidates it.
+ * At most <code>capacity</code> entries, holding at most <code>maxTuples</code> tuples in all, are kept;
+ * the least recently used ones go first, and a result of more than <code>maxTuples</code> tuples is not kept.
+ * Entries are indexed by arity, so that a write only tests the entries of its own arity.
+ * Cached tuples are frozen, and shared by all the hits.
+ * A change made by another client shows once its invalidation has arrived: meanwhile, a hit may return
+ * the previous result. The client's own writes and takes show at once.
+ */
+final class NearCache {
+
+    /** A cached operation: tryRead or readAll of a template. */
+    private static final class Key {
+        final byte op;
+        final Tuple template;
+
+        Key(byte op, Tuple template) {
+            this.op = op;
+            this.template = template;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).op == op && ((Key) o).template.equals(template);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * op + template.hashCode();
+        }
+    }
+
+    private static final class Entry {
+        final Key key;
+        final long watch;
+        final TemplateMatcher matcher;
+        /** Whether the result has come; until then the entry only holds the place. */
+        boolean loaded;
+        Object value;
+        /** Number of tuples of the result. */
+        int tuples;
+
+        Entry(Key key, long watch) {
+            this.key = key;
+            this.watch = watch;
+            this.matcher = TemplateMatcher.of(key.template);
+        }
+    }
+
+    /** Default bound of the tuples kept by all the entries. */
+    static final int MAX_TUPLES = 1 << 16;
+
+    private final int capacity;
+    private final int maxTuples;
+    /** In access order: the eldest is the least recently used. */
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Long, Entry> byWatch = new HashMap<>();
+    /** Entries by arity of their template. */
+    private final Map<Integer, Set<Entry>> byArity = new HashMap<>();
+    /** Tuples kept by all the entries. */
+    private int tuples;
+    private long hits, misses;
+
+    NearCache(int capacity) {
+        this(capacity, MAX_TUPLES);
+    }
+
+    NearCache(int capacity, int maxTuples) {
+        this.capacity = capacity;
+        this.maxTuples = maxTuples;
+    }
+
+    /** Returns the cached result of an operation.
+     * @return a tuple (tryRead, maybe null) or a list of tuples (readAll); {@link #MISS} if not cached.
+     */
+    synchronized Object get(byte op, Tuple template) {
+        Entry e = entries.get(new Key(op, template));
+        if (e == null || !e.loaded) {
+            misses++;
+            return MISS;
+        }
+        hits++;
+        return e.value;
+    }
+
+    /** Marker of a result not in the cache. */
+    static final Object MISS = new Object();
+
+    /** Reserves the entry of an operation, before watching its template and running it.
+     * @param watch the id of the watch.
+     * @param evicted receives the watches of the evicted entries, to be cancelled.
+     * @return false if the entry is already there (the operation is then run without the cache).
+     */
+    synchronized boolean reserve(byte op, Tuple template, long watch, List<Long> evicted) {
+        Key key = new Key(op, template.frozenCopy());
+        if (entries.containsKey(key))
+          return false;
+        Entry e = new Entry(key, watch);
+        entries.put(key, e);
+        byWatch.put(watch, e);
+        byArity.computeIfAbsent(template.size(), k -> new HashSet<>()).add(e);
+        evict(null, evicted);
+        return true;
+    }
+
+    /** Stores the result of an operation, unless its entry has been invalidated meanwhile.
+     * @param value a frozen tuple, or a list of frozen tuples.
+     * @param evicted receives the watches of the evicted entries, to be cancelled: the entry itself
+     * if its result has more than <code>maxTuples</code> tuples.
+     */
+    synchronized void fill(long watch, Object value, List<Long> evicted) {
+        Entry e = byWatch.get(watch);
+        if (e == null)
+          return;
+        int n = value instanceof Collection ? ((Collection<?>) value).size() : value != null ? 1 : 0;
+        if (n > maxTuples) {
+            entries.remove(e.key);
+            drop(e);
+            evicted.add(e.watch);
+            return;
+        }
+        e.value = value;
+        e.loaded = true;
+        e.tuples = n;
+        tuples += n;
+        evict(e, evicted);
+    }
+
+    /** Evicts the least recently used entries, but <code>kept</code>, until both bounds hold. */
+    private void evict(Entry kept, List<Long> evicted) {
+        Iterator<Entry> eldest = entries.values().iterator();
+        while ((entries.size() > capacity || tuples > maxTuples) && eldest.hasNext()) {
+            Entry old = eldest.next();
+            if (old == kept)
+              continue;
+            eldest.remove();
+            drop(old);
+            evicted.add(old.watch);
+        }
+    }
+
+    /** Forgets an entry already removed from <code>entries</code>. */
+    private void drop(Entry e) {
+        byWatch.remove(e.watch);
+        Set<Entry> sameArity = byArity.get(e.key.template.size());
+        sameArity.remove(e);
+        if (sameArity.isEmpty())
+          byArity.remove(e.key.template.size());
+        tuples -= e.tuples;
+    }
+
+    /** Drops the entry of a watch. */
+    synchronized void invalidate(long watch) {
+        Entry e = byWatch.get(watch);
+        if (e != null) {
+            entries.remove(e.key);
+            drop(e);
+        }
+    }
+
+    /** Drops the entries tuples written by this client may change,
+     * without waiting for the invalidation from the server.
+     * @param cancelled receives the watches of the dropped entries, to be cancelled.
+     */
+    synchronized void changed(Collection<Tuple> tuples, List<Long> cancelled) {
+        List<Entry> stale = new ArrayList<>();
+        for (Tuple t : tuples) {
+            if (t == null)
+              continue;
+            Set<Entry> sameArity = byArity.get(t.size());
+            if (sameArity == null)
+              continue;
+            for (Entry e : sameArity) {
+                if (e.matcher.matches(t))
+                  stale.add(e);
+            }
+            for (Entry e : stale) {
+                entries.remove(e.key);
+                drop(e);
+                cancelled.add(e.watch);
+            }
+            stale.clear();
+        }
+    }
+
+    /** Drops everything, e.g. when the connection is lost. */
+    synchronized void clear() {
+        entries.clear();
+        byWatch.clear();
+        byArity.clear();
+        tuples = 0;
+    }
+
+    /** Returns the number of results served from the cache. */
+    synchronized long hits() {
+        return hits;
+    }
+
+    /** Returns the number of results fetched from the server. */
+    synchronized long misses() {
+        return misses;
+    }
+
+    /** Freezes a result, to be cached. */
+    static Object frozen(Object value) {
+        if (value instanceof Tuple)
+          return ((Tuple) value).freeze();
+        if (value instanceof Collection) {
+            List<Tuple> tuples = new ArrayList<>();
+            for (Object t : (Collection<?>) value) {
+                tuples.add(((Tuple) t).freeze());
+            }
+            return tuples;
+        }
+        return value;
+    }
+}
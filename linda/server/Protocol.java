@@ -0,0 +1,159 @@
+package linda.server;
+
+import linda.Tuple;
+import linda.TupleCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/** Wire format shared by {@link LindaClient} and {@link LindaServer}.
+ * Every message is a frame: its length (int, not counting itself), a request id (long), an opcode (byte),
+ * then a payload whose tuples are encoded with {@link TupleCodec}.
+ * A response carries the id of its request: a single connection multiplexes any number of outstanding
+ * requests, and the answers come back in whatever order the operations complete.
+ */
+final class Protocol {
+
+    /** Largest accepted frame, to reject garbage before allocating it. */
+    static final int MAX_FRAME = 64 << 20;
+    /** Request id, opcode. */
+    static final int HEADER = 9;
+
+    /* Requests */
+    static final byte WRITE = 1, WRITE_ALL = 2, TAKE = 3, READ = 4, TAKE_TIMED = 5, READ_TIMED = 6, TAKE_N = 7,
+                      TRY_TAKE = 8, TRY_TAKE_N = 9, TRY_READ = 10, TAKE_ALL = 11, READ_ALL = 12,
+                      /** No response but an error: the firing comes as an EVENT frame with the id of the registration.
+                       * A registration withdrawn by CANCEL before it fires is acknowledged by OK. */
+                      EVENT_REGISTER = 13,
+                      DEBUG = 14,
+                      /** Withdraws the wait of the request whose id is the payload; no response. */
+                      CANCEL = 15,
+                      /** Watches a template (see {@link linda.shm.CentralizedLinda#watch}); no response but an error:
+                       * the next write or take of a matching tuple sends an INVALIDATE frame with the id of the request. */
+                      WATCH = 16;
+
+    /* Responses */
+    static final byte OK = 64, TUPLE = 65, TUPLES = 66, EVENT = 67, ERROR = 68, INVALIDATE = 69;
+
+    private Protocol() {}
+
+    /** A frame being built. */
+    static final class FrameWriter extends DataOutputStream {
+        private final Buffer buf;
+        final long id;
+        final byte op;
+
+        FrameWriter(long id, byte op) {
+            this(new Buffer(), id, op);
+        }
+
+        private FrameWriter(Buffer buf, long id, byte op) {
+            super(buf);
+            this.buf = buf;
+            this.id = id;
+            this.op = op;
+            try {
+                writeInt(0); // length, set by toBuffer
+                writeLong(id);
+                writeByte(op);
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        /** Returns the frame, ready to be sent. */
+        ByteBuffer toBuffer() {
+            ByteBuffer frame = ByteBuffer.wrap(buf.bytes(), 0, buf.size());
+            frame.putInt(0, buf.size() - 4);
+            return frame;
+        }
+
+        /** Writes a tuple, or null. */
+        FrameWriter tuple(Tuple t) throws IOException {
+            writeTuple(this, t);
+            return this;
+        }
+    }
+
+    /** Gives access to its array without copying it. */
+    private static final class Buffer extends ByteArrayOutputStream {
+        byte[] bytes() {
+            return buf;
+        }
+    }
+
+    /** A received frame. */
+    static final class Frame {
+        final long id;
+        final byte op;
+        /** The payload. */
+        final DataInputStream in;
+
+        Frame(byte[] body) {
+            ByteBuffer b = ByteBuffer.wrap(body);
+            this.id = b.getLong();
+            this.op = b.get();
+            this.in = new DataInputStream(new ByteArrayInputStream(body, HEADER, body.length - HEADER));
+        }
+    }
+
+    /** Returns a frame made of its header alone. */
+    static ByteBuffer frame(long id, byte op) {
+        return new FrameWriter(id, op).toBuffer();
+    }
+
+    /** Returns a frame carrying a tuple, or null. */
+    static ByteBuffer tupleFrame(long id, byte op, Tuple t) {
+        try {
+            return new FrameWriter(id, op).tuple(t).toBuffer();
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /** Returns a frame carrying tuples. */
+    static ByteBuffer tuplesFrame(long id, byte op, Collection<Tuple> tuples) {
+        try {
+            FrameWriter w = new FrameWriter(id, op);
+            writeTuples(w, tuples);
+            return w.toBuffer();
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    static void writeTuple(DataOutput out, Tuple t) throws IOException {
+        out.writeBoolean(t != null);
+        if (t != null)
+          TupleCodec.write(t, out);
+    }
+
+    static Tuple readTuple(DataInput in) throws IOException {
+        return in.readBoolean() ? TupleCodec.read(in) : null;
+    }
+
+    static void writeTuples(DataOutput out, Collection<Tuple> tuples) throws IOException {
+        out.writeInt(tuples.size());
+        for (Tuple t : tuples) {
+            TupleCodec.write(t, out);
+        }
+    }
+
+    static List<Tuple> readTuples(DataInput in) throws IOException {
+        int n = in.readInt();
+        List<Tuple> tuples = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            tuples.add(TupleCodec.read(in));
+        }
+        return tuples;
+    }
+}
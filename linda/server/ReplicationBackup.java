@@ -0,0 +1,155 @@
+package linda.server;
+
+import linda.Tuple;
+import linda.TupleCodec;
+import linda.shm.CentralizedLinda;
+import linda.shm.OperationLog;
+import linda.shm.PartitionImage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Keeps a tuplespace a replica of the one of a primary server (see {@link ReplicationPrimary}),
+ * by applying the records of its operation log in order.
+ * After a disconnection, the backup connects again and resumes after the last record it applied.
+ * The replica serves no clients until it takes over (see {@link #awaitPrimaryLoss}).
+ */
+public class ReplicationBackup implements Closeable {
+
+    /** Delay between two connection attempts. */
+    static final long RETRY_MILLIS = 200;
+
+    private final CentralizedLinda space;
+    private final InetSocketAddress primary;
+    private final Thread follower;
+    /** Epoch of the primary followed, 0 if none yet. */
+    private long epoch = 0;
+    /** Last record applied, -1 if none yet. */
+    private volatile long applied = -1;
+    /** When the primary was last heard from. */
+    private volatile long contact = System.nanoTime();
+    private volatile boolean closed = false;
+    private volatile Socket socket;
+
+    /** Starts following a primary.
+     * @param space the replica; its content is replaced by the one of the primary.
+     * @param primary the replication address of the primary, as host:port.
+     */
+    public ReplicationBackup(CentralizedLinda space, String primary) {
+        int colon = primary.lastIndexOf(':');
+        if (colon < 0)
+          throw new IllegalArgumentException("host:port expected, got " + primary);
+        this.space = space;
+        this.primary = new InetSocketAddress(primary.substring(0, colon), Integer.parseInt(primary.substring(colon + 1)));
+        this.follower = new Thread(this::follow, "linda-replication-follow");
+        this.follower.setDaemon(true);
+        this.follower.start();
+    }
+
+    /** Returns the last record applied, -1 if none yet. */
+    public long applied() {
+        return applied;
+    }
+
+    /** Waits until the primary has not been heard from for <code>timeout</code>, or the backup is closed. */
+    public void awaitPrimaryLoss(long timeout, TimeUnit unit) throws InterruptedException {
+        long limit = unit.toNanos(timeout);
+        while (!closed) {
+            long silent = System.nanoTime() - contact;
+            if (silent >= limit)
+              return;
+            TimeUnit.NANOSECONDS.sleep(Math.min(limit - silent, TimeUnit.MILLISECONDS.toNanos(100)));
+        }
+    }
+
+    /** Stops following the primary: the replica keeps what it has applied. */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        Socket s = socket;
+        if (s != null)
+          s.close();
+        try {
+            follower.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void follow() {
+        while (!closed) {
+            try (Socket s = new Socket()) {
+                socket = s;
+                if (closed)
+                  return;
+                s.connect(primary, (int) RETRY_MILLIS * 5);
+                s.setTcpNoDelay(true);
+                // A silent primary is a lost one: it sends heartbeats.
+                s.setSoTimeout((int) ReplicationPrimary.HEARTBEAT_MILLIS * 4);
+                session(new DataInputStream(new BufferedInputStream(s.getInputStream())),
+                        new DataOutputStream(new BufferedOutputStream(s.getOutputStream())));
+            } catch (IOException e) {
+                // the primary is down, or has dropped this backup: try again
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /** Applies the stream of the primary until it fails. */
+    private void session(DataInputStream in, DataOutputStream out) throws IOException {
+        out.writeLong(epoch);
+        out.writeLong(applied);
+        out.flush();
+        epoch = in.readLong();
+        contact = System.nanoTime();
+        while (!closed) {
+            byte kind = in.readByte();
+            contact = System.nanoTime();
+            if (kind == ReplicationPrimary.IMAGES) {
+                int n = in.readInt();
+                List<PartitionImage> images = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    int arity = in.readInt();
+                    Class<?> type = (Class<?>) TupleCodec.readValue(in);
+                    long seq = in.readLong();
+                    int count = in.readInt();
+                    List<Tuple> tuples = new ArrayList<>(count);
+                    for (int j = 0; j < count; j++) {
+                        tuples.add(TupleCodec.read(in));
+                    }
+                    images.add(new PartitionImage(arity, type, seq, tuples));
+                }
+                long last = in.readLong();
+                space.restore(images);
+                applied = last;
+            } else if (kind == ReplicationPrimary.RECORDS) {
+                int n = in.readInt();
+                if (n == 0)
+                  continue;
+                for (int i = 0; i < n; i++) {
+                    long seq = in.readLong();
+                    byte op = in.readByte();
+                    space.replay(new OperationLog.Record(seq, op, TupleCodec.read(in)));
+                    applied = seq;
+                }
+            } else {
+                throw new IOException("unexpected replication message " + kind);
+            }
+            out.writeLong(applied);
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package linda.server;
+
+import linda.Tuple;
+import linda.TupleCodec;
+import linda.shm.CentralizedLinda;
+import linda.shm.LogListener;
+import linda.shm.LogStore;
+import linda.shm.OperationLog;
+import linda.shm.PartitionImage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Ships the operation log of a tuplespace to backup servers (see {@link ReplicationBackup}).
+ * Every write and take the {@link LogStore} logs is numbered; the last {@link #BUFFER} records are kept in a ring,
+ * and each backup gets them in order, on its own connection and thread, and acknowledges the last one it applied.
+ * A backup says where it stopped: if the records since then are still in the ring, it only gets those;
+ * otherwise (a new backup, or one too far behind) it first gets images of all the partitions.
+ * <p>
+ * Asynchronous by default: logging a record only stores it in the ring, and writers never wait for the backups.
+ * Semi-synchronous, a commit also waits until one backup has acknowledged every record logged so far,
+ * for at most <code>timeout</code>; past that, the primary says so and goes on asynchronously until a backup catches up.
+ * <p>
+ * Only the tuples are replicated: event registrations and pending reads live on the connections of the clients,
+ * which have to register again with the backup that takes over.
+ *
+ * Stream: the backup sends the epoch of the primary it followed and the last record it applied (-1 if none),
+ * the primary its epoch, then IMAGES and RECORDS messages; the backup sends back acknowledgments.
+ */
+public class ReplicationPrimary implements LogListener, Closeable {
+
+    /** Records kept for backups catching up. */
+    public static final int BUFFER = 1 << 16;
+    /** Maximum records per RECORDS message. */
+    static final int MAX_BATCH = 1024;
+    /** An idle primary sends an empty RECORDS message this often, so that its backups know it is alive. */
+    static final long HEARTBEAT_MILLIS = 500;
+
+    /** Images of all the partitions: count, then each image (arity, type, seq, count, tuples), then the last record
+     * the images may not contain. */
+    static final byte IMAGES = 1;
+    /** Records: count, then each record (seq, op, tuple). */
+    static final byte RECORDS = 2;
+
+    private static final int MASK = BUFFER - 1;
+
+    private final CentralizedLinda space;
+    private final ServerSocket server;
+    private final Thread acceptor;
+    private final boolean semiSync;
+    private final long timeoutNanos;
+    /** Identifies this primary: a backup of another primary, even with the same numbers, starts again. */
+    private final long epoch = ThreadLocalRandom.current().nextLong();
+
+    private final OperationLog.Record[] ring = new OperationLog.Record[BUFFER];
+    /** Last record logged; publishes the ring. */
+    private volatile long head;
+    private final List<Backup> backups = new CopyOnWriteArrayList<>();
+    /** Notified of new records (when senders wait for them) and of acknowledgments. */
+    private final Object progress = new Object();
+    private final AtomicInteger idleSenders = new AtomicInteger();
+    /** Whether semi-synchronous commits have given up waiting, until a backup catches up. */
+    private volatile boolean degraded = false;
+    private volatile boolean closed = false;
+
+    /** Replicates a tuplespace asynchronously.
+     * Must be created before the tuplespace is changed: the records logged until then are not in the ring.
+     * @param store the store of <code>space</code>.
+     * @param port the port backups connect to (0 for any).
+     */
+    public ReplicationPrimary(CentralizedLinda space, LogStore store, int port) throws IOException {
+        this(space, store, port, false, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /** Replicates a tuplespace.
+     * @param semiSync whether commits wait for a backup.
+     * @param timeout how long a commit waits for a backup, when semi-synchronous.
+     */
+    public ReplicationPrimary(CentralizedLinda space, LogStore store, int port, boolean semiSync,
+                              long timeout, TimeUnit unit) throws IOException {
+        this.space = space;
+        this.semiSync = semiSync;
+        this.timeoutNanos = unit.toNanos(timeout);
+        store.setListener(this);
+        store.open();
+        long last = 0;
+        for (PartitionImage image : space.images()) {
+            last = Math.max(last, image.seq);
+        }
+        this.head = last;
+        this.server = new ServerSocket(port);
+        this.acceptor = new Thread(this::accept, "linda-replication-accept");
+        this.acceptor.setDaemon(true);
+        this.acceptor.start();
+    }
+
+    /** Returns the port backups connect to. */
+    public int port() {
+        return server.getLocalPort();
+    }
+
+    /** Returns the number of backups connected. */
+    public int backups() {
+        return backups.size();
+    }
+
+    /** Returns the last record logged. */
+    public long head() {
+        return head;
+    }
+
+    @Override
+    public void appended(OperationLog.Record record) {
+        ring[(int) (record.seq & MASK)] = record;
+        head = record.seq;
+        if (idleSenders.get() > 0) {
+            synchronized (progress) {
+                progress.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void committed() {
+        if (!semiSync || degraded || backups.isEmpty())
+          return;
+        long target = head;
+        long deadline = System.nanoTime() + timeoutNanos;
+        synchronized (progress) {
+            while (acked() < target && !closed) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    degraded = true;
+                    System.err.println("Replication: no backup acknowledged record " + target + " in time, going on asynchronously");
+                    return;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(progress, left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /** Returns the last record acknowledged by a backup. */
+    private long acked() {
+        long acked = -1;
+        for (Backup b : backups) {
+            acked = Math.max(acked, b.acked);
+        }
+        return acked;
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                Backup b = new Backup(socket);
+                backups.add(b);
+                Thread sender = new Thread(b::send, "linda-replication-send");
+                sender.setDaemon(true);
+                sender.start();
+            } catch (IOException e) {
+                if (!closed)
+                  System.err.println("Replication: " + e);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        server.close();
+        for (Backup b : backups) {
+            b.drop();
+        }
+        synchronized (progress) {
+            progress.notifyAll();
+        }
+    }
+
+    /** A connected backup. */
+    private final class Backup {
+        final Socket socket;
+        volatile long acked = -1;
+
+        Backup(Socket socket) {
+            this.socket = socket;
+        }
+
+        /** Sends the images if needed, then the records, until the backup or the primary goes away. */
+        void send() {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                long followed = in.readLong();
+                long from = in.readLong();
+                out.writeLong(epoch);
+                long next;
+                if (followed == epoch && from >= 0 && from <= head && (from == head || has(from + 1))) {
+                    next = from + 1;
+                    acked = from;
+                } else {
+                    // The images contain at least the records up to there, maybe some more:
+                    // the backup skips the records its partitions already have.
+                    long last = head;
+                    List<PartitionImage> images = space.images();
+                    out.writeByte(IMAGES);
+                    out.writeInt(images.size());
+                    for (PartitionImage image : images) {
+                        out.writeInt(image.arity);
+                        TupleCodec.writeValue(image.type, out);
+                        out.writeLong(image.seq);
+                        out.writeInt(image.tuples.size());
+                        for (Tuple t : image.tuples) {
+                            TupleCodec.write(t, out);
+                        }
+                    }
+                    out.writeLong(last);
+                    next = last + 1;
+                }
+                out.flush();
+                Thread acks = new Thread(() -> receive(in), "linda-replication-ack");
+                acks.setDaemon(true);
+                acks.start();
+                long sent = System.nanoTime();
+                while (!closed) {
+                    long last = head;
+                    if (next > last) {
+                        if (System.nanoTime() - sent > TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_MILLIS)) {
+                            out.writeByte(RECORDS);
+                            out.writeInt(0);
+                            out.flush();
+                            sent = System.nanoTime();
+                        }
+                        await(next);
+                        continue;
+                    }
+                    int n = (int) Math.min(last - next + 1, MAX_BATCH);
+                    out.writeByte(RECORDS);
+                    out.writeInt(n);
+                    for (int i = 0; i < n; i++, next++) {
+                        OperationLog.Record r = ring[(int) (next & MASK)];
+                        if (r == null || r.seq != next)
+                          throw new IOException("backup " + socket.getRemoteSocketAddress() + " too far behind");
+                        out.writeLong(r.seq);
+                        out.writeByte(r.op);
+                        TupleCodec.write(r.tuple, out);
+                    }
+                    out.flush();
+                    sent = System.nanoTime();
+                }
+            } catch (IOException e) {
+                if (!closed)
+                  System.err.println("Replication: lost backup " + socket.getRemoteSocketAddress() + ": " + e);
+            } finally {
+                drop();
+            }
+        }
+
+        /** Reads the acknowledgments. */
+        private void receive(DataInputStream in) {
+            try {
+                while (true) {
+                    acked = in.readLong();
+                    if (semiSync) {
+                        if (degraded && acked >= head)
+                          degraded = false;
+                        synchronized (progress) {
+                            progress.notifyAll();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                drop();
+            }
+        }
+
+        /** Waits a while for the record <code>next</code>. */
+        private void await(long next) throws IOException {
+            idleSenders.incrementAndGet();
+            try {
+                synchronized (progress) {
+                    if (head < next && !closed && !socket.isClosed())
+                      progress.wait(100);
+                }
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } finally {
+                idleSenders.decrementAndGet();
+            }
+        }
+
+        void drop() {
+            backups.remove(this);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already gone
+            }
+            synchronized (progress) {
+                progress.notifyAll();
+            }
+        }
+    }
+
+    /** Whether the ring still holds record <code>seq</code>. */
+    private boolean has(long seq) {
+        OperationLog.Record r = ring[(int) (seq & MASK)];
+        return r != null && r.seq == seq;
+    }
+}
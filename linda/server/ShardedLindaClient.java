@@ -0,0 +1,325 @@
+package linda.server;
+
+import linda.AsyncLinda;
+import linda.Callback;
+import linda.Linda;
+import linda.Tuple;
+import linda.shm.TakeCollector;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/** Client of a tuplespace sharded over several servers, each of which holds a part of the tuples.
+ * A tuple belongs to the shard chosen by consistent hashing of its arity and leading fields (see {@link ConsistentHash}).
+ * An operation whose template has values in all these fields goes to the owning shard only;
+ * any other is fanned out to all the shards: readAll and takeAll merge their results, a take or read waits
+ * on all the shards and keeps the first tuple (a tuple taken meanwhile by another shard is written back),
+ * a tryTake or tryRead asks the shards one after the other.
+ * Every client of a sharded space must be given the same servers, and the same number of key fields.
+ */
+public class ShardedLindaClient implements Linda, AsyncLinda, Closeable {
+
+    private final List<LindaClient> shards = new ArrayList<>();
+    private final ConsistentHash<LindaClient> ring;
+
+    /** Connects to the shards.
+     * @param serverURIs the URIs of the servers, separated by commas, e.g. "//localhost:4000,//localhost:4001".
+     */
+    public ShardedLindaClient(String serverURIs) {
+        this(List.of(serverURIs.split(",")), 1, 0);
+    }
+
+    /** Connects to the shards.
+     * @param serverURIs the URIs of the servers.
+     * @param keyFields the number of leading fields which, with the arity, choose the shard of a tuple.
+     * @param nearCacheSize the size of the near cache of each shard, 0 for none (see {@link LindaClient#LindaClient(String, int)}).
+     */
+    public ShardedLindaClient(List<String> serverURIs, int keyFields, int nearCacheSize) {
+        Map<String, LindaClient> byName = new LinkedHashMap<>();
+        for (String uri : serverURIs) {
+            String name = LindaClient.address(uri.trim()).toString();
+            if (byName.containsKey(name))
+              throw new IllegalArgumentException("Duplicate shard " + name);
+            LindaClient shard = new LindaClient(name, nearCacheSize);
+            byName.put(name, shard);
+            shards.add(shard);
+        }
+        if (shards.isEmpty())
+          throw new IllegalArgumentException("No shard");
+        this.ring = new ConsistentHash<>(byName, keyFields);
+    }
+
+    /** Returns the number of shards. */
+    public int shards() {
+        return shards.size();
+    }
+
+    @Override
+    public void write(Tuple t) {
+        if (t == null)
+          throw new IllegalArgumentException("null tuple");
+        ring.owner(t).write(t);
+    }
+
+    @Override
+    public void writeAll(Collection<Tuple> tuples) {
+        LindaClient.await(writeAllAsync(tuples));
+    }
+
+    @Override
+    public Tuple take(Tuple template) {
+        return LindaClient.awaitOrWithdraw(takeAsync(template));
+    }
+
+    @Override
+    public Tuple read(Tuple template) {
+        return LindaClient.awaitOrWithdraw(readAsync(template));
+    }
+
+    @Override
+    public Tuple take(Tuple template, long timeout, TimeUnit unit) {
+        return LindaClient.awaitOrWithdraw(takeAsync(template, timeout, unit));
+    }
+
+    @Override
+    public Tuple read(Tuple template, long timeout, TimeUnit unit) {
+        return LindaClient.awaitOrWithdraw(readAsync(template, timeout, unit));
+    }
+
+    @Override
+    public Collection<Tuple> take(Tuple template, int n) {
+        Collection<Tuple> tuples = LindaClient.awaitOrWithdraw(takeAsync(template, n));
+        return tuples != null ? tuples : new ArrayList<>();
+    }
+
+    @Override
+    public Tuple tryTake(Tuple template) {
+        return LindaClient.await(tryTakeAsync(template));
+    }
+
+    @Override
+    public Tuple tryRead(Tuple template) {
+        return LindaClient.await(tryReadAsync(template));
+    }
+
+    @Override
+    public Collection<Tuple> tryTake(Tuple template, int n) {
+        return LindaClient.await(tryTakeAsync(template, n));
+    }
+
+    @Override
+    public Collection<Tuple> takeAll(Tuple template) {
+        return LindaClient.await(takeAllAsync(template));
+    }
+
+    @Override
+    public Collection<Tuple> readAll(Tuple template) {
+        return LindaClient.await(readAllAsync(template));
+    }
+
+    @Override
+    public CompletableFuture<Void> writeAsync(Tuple t) {
+        if (t == null)
+          throw new IllegalArgumentException("null tuple");
+        return ring.owner(t).writeAsync(t);
+    }
+
+    /** Writes the tuples of each shard as one batch. */
+    @Override
+    public CompletableFuture<Void> writeAllAsync(Collection<Tuple> tuples) {
+        Map<LindaClient, List<Tuple>> batches = new LinkedHashMap<>();
+        for (Tuple t : tuples) {
+            if (t == null)
+              throw new IllegalArgumentException("null tuple");
+            batches.computeIfAbsent(ring.owner(t), k -> new ArrayList<>()).add(t);
+        }
+        List<CompletableFuture<Void>> written = new ArrayList<>();
+        batches.forEach((shard, batch) -> written.add(shard.writeAllAsync(batch)));
+        return CompletableFuture.allOf(written.toArray(new CompletableFuture<?>[0]));
+    }
+
+    @Override
+    public CompletableFuture<Tuple> takeAsync(Tuple template) {
+        return first(template, shard -> shard.takeAsync(template), true);
+    }
+
+    @Override
+    public CompletableFuture<Tuple> readAsync(Tuple template) {
+        return first(template, shard -> shard.readAsync(template), false);
+    }
+
+    @Override
+    public CompletableFuture<Tuple> takeAsync(Tuple template, long timeout, TimeUnit unit) {
+        return first(template, shard -> shard.takeAsync(template, timeout, unit), true);
+    }
+
+    @Override
+    public CompletableFuture<Tuple> readAsync(Tuple template, long timeout, TimeUnit unit) {
+        return first(template, shard -> shard.readAsync(template, timeout, unit), false);
+    }
+
+    /** Runs a blocking operation on the owning shard, or on all of them, keeping the first tuple.
+     * The result is null if all the shards answer null (timeout). Once it is known, or cancelled,
+     * the other waits are withdrawn.
+     * @param take true if the operation takes its tuple: the tuples taken by the other shards are then written back.
+     */
+    private CompletableFuture<Tuple> first(Tuple template, Function<LindaClient, CompletableFuture<Tuple>> op, boolean take) {
+        LindaClient owner = template != null ? ring.route(template) : shards.get(0);
+        if (owner != null)
+          return op.apply(owner);
+        CompletableFuture<Tuple> result = new CompletableFuture<>();
+        List<CompletableFuture<Tuple>> waits = new ArrayList<>();
+        AtomicInteger empty = new AtomicInteger(shards.size());
+        for (LindaClient shard : shards) {
+            CompletableFuture<Tuple> wait = op.apply(shard);
+            waits.add(wait);
+            wait.whenComplete((t, e) -> {
+                if (e != null) {
+                    if (!(e instanceof CancellationException))
+                      result.completeExceptionally(LindaClient.cause(e));
+                } else if (t == null) {
+                    if (empty.decrementAndGet() == 0)
+                      result.complete(null);
+                } else if (!result.complete(t) && take) {
+                    shard.writeAsync(t);
+                }
+            });
+        }
+        result.whenComplete((t, e) -> waits.forEach(wait -> wait.cancel(false)));
+        return result;
+    }
+
+    @Override
+    public CompletableFuture<Collection<Tuple>> takeAsync(Tuple template, int n) {
+        LindaClient owner = template != null ? ring.route(template) : shards.get(0);
+        if (owner != null)
+          return owner.takeAsync(template, n);
+        // The tuples already present, wherever they are, then one wait on all the shards after the other
+        return TakeCollector.collect(tryTakeAsync(template, n), n, () -> takeAsync(template), this::writeAllAsync);
+    }
+
+    @Override
+    public CompletableFuture<Tuple> tryTakeAsync(Tuple template) {
+        return oneByOne(template, shard -> shard.tryTakeAsync(template), 0);
+    }
+
+    @Override
+    public CompletableFuture<Tuple> tryReadAsync(Tuple template) {
+        return oneByOne(template, shard -> shard.tryReadAsync(template), 0);
+    }
+
+    /** Runs a non-blocking operation on the owning shard, or on the shards one after the other until one finds a tuple. */
+    private CompletableFuture<Tuple> oneByOne(Tuple template, Function<LindaClient, CompletableFuture<Tuple>> op, int from) {
+        LindaClient owner = template != null ? ring.route(template) : shards.get(0);
+        if (owner != null)
+          return op.apply(owner);
+        return op.apply(shards.get(from)).thenCompose(t -> t != null || from + 1 == shards.size()
+                                                           ? CompletableFuture.completedFuture(t)
+                                                           : oneByOne(template, op, from + 1));
+    }
+
+    @Override
+    public CompletableFuture<Collection<Tuple>> tryTakeAsync(Tuple template, int n) {
+        LindaClient owner = template != null ? ring.route(template) : shards.get(0);
+        if (owner != null)
+          return owner.tryTakeAsync(template, n);
+        return tryTakeFrom(template, n, 0, new ArrayList<>());
+    }
+
+    private CompletableFuture<Collection<Tuple>> tryTakeFrom(Tuple template, int n, int from, List<Tuple> tuples) {
+        if (tuples.size() >= n || from == shards.size())
+          return CompletableFuture.completedFuture(tuples);
+        return shards.get(from).tryTakeAsync(template, n - tuples.size()).thenCompose(taken -> {
+            tuples.addAll(taken);
+            return tryTakeFrom(template, n, from + 1, tuples);
+        });
+    }
+
+    @Override
+    public CompletableFuture<Collection<Tuple>> takeAllAsync(Tuple template) {
+        return all(template, shard -> shard.takeAllAsync(template));
+    }
+
+    @Override
+    public CompletableFuture<Collection<Tuple>> readAllAsync(Tuple template) {
+        return all(template, shard -> shard.readAllAsync(template));
+    }
+
+    /** Runs an operation on the owning shard, or on all of them at once, merging their results. */
+    private CompletableFuture<Collection<Tuple>> all(Tuple template, Function<LindaClient, CompletableFuture<Collection<Tuple>>> op) {
+        LindaClient owner = template != null ? ring.route(template) : shards.get(0);
+        if (owner != null)
+          return op.apply(owner);
+        List<CompletableFuture<Collection<Tuple>>> parts = new ArrayList<>();
+        for (LindaClient shard : shards) {
+            parts.add(op.apply(shard));
+        }
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            List<Tuple> tuples = new ArrayList<>();
+            for (CompletableFuture<Collection<Tuple>> part : parts) {
+                tuples.addAll(part.join());
+            }
+            return tuples;
+        });
+    }
+
+    /** Registers the event on the owning shard, or on all of them: the first firing calls the callback
+     * and withdraws the other registrations; a tuple another shard has taken meanwhile is written back.
+     */
+    @Override
+    public void eventRegister(eventMode mode, eventTiming timing, Tuple template, Callback callback) {
+        LindaClient owner = template != null ? ring.route(template) : shards.get(0);
+        if (owner != null) {
+            owner.eventRegister(mode, timing, template, callback);
+            return;
+        }
+        AtomicBoolean fired = new AtomicBoolean();
+        long[] ids = new long[shards.size()];
+        for (int i = 0; i < shards.size(); i++) {
+            LindaClient shard = shards.get(i);
+            ids[i] = shard.register(mode, timing, template, t -> {
+                if (fired.compareAndSet(false, true)) {
+                    withdraw(ids);
+                    callback.call(t);
+                } else if (mode == eventMode.TAKE) {
+                    shard.writeAsync(t);
+                }
+            });
+        }
+        // Fired before all the registrations were sent
+        if (fired.get())
+          withdraw(ids);
+    }
+
+    private void withdraw(long[] ids) {
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] != 0)
+              shards.get(i).cancel(ids[i]);
+        }
+    }
+
+    @Override
+    public void debug(String prefix) {
+        for (int i = 0; i < shards.size(); i++) {
+            shards.get(i).debug(prefix + "[shard " + i + "]");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (LindaClient shard : shards) {
+            shard.close();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package linda.shm;
+
+import linda.Tuple;
+
+import java.lang.reflect.Modifier;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Partitions d'une même arité.
+ *
+ * Les opérations dont le tuple ou le motif désigne une seule partition
+ * (premier champ concret) prennent le verrou de l'arité en lecture, puis le
+ * moniteur de leur partition : elles s'exécutent en parallèle tant qu'elles
+ * ne visent pas la même partition.
+ * Les enregistrements d'évènements dont le motif commence par un type
+ * peuvent concerner plusieurs partitions : ils prennent le verrou de
+ * l'arité en écriture, ce qui les rend atomiques vis-à-vis des écritures, et
+ * sont rangés dans la partition commune {@link #wide}. Il en va de même
+ * pour un motif commençant par une valeur d'une classe non finale : une
+ * valeur peut être égale à une instance d'une autre classe (une ArrayList à
+ * une LinkedList de mêmes éléments), rangée dans une autre partition.
+ */
+public class ArityGroup {
+
+    /** Verrou de l'arité. */
+    final ReadWriteLock lock = new ReentrantReadWriteLock();
+    /** Évènements dont le motif peut concerner plusieurs partitions ; ne contient aucun tuple. */
+    final Partition wide = new Partition(Object.class);
+    private final ConcurrentMap<Class<?>, Partition> partitions = new ConcurrentHashMap<>();
+
+    /**
+     * Renvoie la partition d'un type, en la créant au besoin.
+     *
+     * @param type le type du premier champ.
+     * @return la partition correspondante.
+     */
+    public Partition partition(Class<?> type) {
+        return this.partitions.computeIfAbsent(type, Partition::new);
+    }
+
+    /**
+     * Renvoie la partition d'un type si elle existe.
+     *
+     * @param type le type du premier champ.
+     * @return la partition correspondante, null si aucun tuple ni évènement
+     *         de ce type n'a encore été vu.
+     */
+    public Partition existingPartition(Class<?> type) {
+        return this.partitions.get(type);
+    }
+
+    /**
+     * @return toutes les partitions de l'arité.
+     */
+    public Collection<Partition> partitions() {
+        return this.partitions.values();
+    }
+
+    /**
+     * Indique si un motif peut concerner plusieurs partitions, c'est-à-dire
+     * si son premier champ est un type, ou une valeur dont la classe n'est
+     * pas finale : les valeurs des classes finales (String, Integer...) ne
+     * sont égales qu'à des instances de leur classe.
+     *
+     * @param template le motif.
+     * @return vrai si le motif doit être traité sur toutes les partitions.
+     */
+    public static boolean isWide(Tuple template) {
+        if (template.isEmpty())
+            return false;
+        Object first = template.get(0);
+        if (first instanceof Class)
+            return true;
+        // Une tête nulle désigne la partition des tuples de tête nulle
+        if (first == null)
+            return false;
+        // Les sous-tuples et sous-motifs sont tous rangés dans la même partition
+        return !(first instanceof Tuple) && !Modifier.isFinal(first.getClass().getModifiers());
+    }
+}
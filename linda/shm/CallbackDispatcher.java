@@ -0,0 +1,157 @@
+package linda.shm;
+
+import linda.Callback;
+import linda.Tuple;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Étage d'appel des callbacks déclenchés par les écritures.
+ *
+ * Les écrivains décident sous verrou quels évènements sont déclenchés, puis
+ * confient les appels à cet étage au lieu d'exécuter eux-mêmes le code des
+ * abonnés : un callback lent ne ralentit plus que ses propres appels.
+ *
+ * Chaque callback (abonné) a sa boîte aux lettres, bornée à
+ * {@link #MAILBOX_CAPACITY} tuples : ses appels s'y font dans l'ordre des
+ * déclenchements, un seul à la fois. Quand la boîte d'un abonné est pleine,
+ * l'écrivain qui lui destine un tuple attend qu'une place se libère ; les
+ * écrivains qui ne le concernent pas ne sont pas freinés.
+ */
+public class CallbackDispatcher {
+
+    /** Nombre maximal d'appels en attente pour un même callback. */
+    public static final int MAILBOX_CAPACITY = 1024;
+    /** Nombre maximal d'appels d'un même callback avant de laisser la place aux autres. */
+    private static final int BATCH = 64;
+
+    /**
+     * Appels en attente d'un callback.
+     */
+    private final class Mailbox implements Runnable {
+        private final Callback callback;
+        private final ArrayDeque<Tuple> tuples = new ArrayDeque<>();
+        /** Vrai tant que la boîte est confiée aux fils d'appel. */
+        private boolean scheduled = false;
+        /** Vrai une fois la boîte oubliée : les nouveaux appels en créent une autre. */
+        private boolean closed = false;
+        /** Fil en train d'appeler le callback. */
+        private Thread drainer = null;
+
+        private Mailbox(Callback callback) {
+            this.callback = callback;
+        }
+
+        /**
+         * Dépose un appel.
+         *
+         * @return faux si la boîte a été oubliée entre-temps.
+         */
+        private synchronized boolean offer(Tuple tuple) {
+            // Un callback qui écrit et se déclenche lui-même ne doit pas
+            // attendre sa propre boîte : il la dépasserait sans fin.
+            boolean interrupted = false;
+            while (!this.closed && this.tuples.size() >= MAILBOX_CAPACITY && this.drainer != Thread.currentThread()) {
+                try {
+                    this.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            if (this.closed)
+                return false;
+            this.tuples.add(tuple);
+            pending.incrementAndGet();
+            if (!this.scheduled) {
+                this.scheduled = true;
+                workers.execute(this);
+            }
+            return true;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                this.drainer = Thread.currentThread();
+            }
+            try {
+                for (int i = 0; i < BATCH; i++) {
+                    Tuple tuple;
+                    synchronized (this) {
+                        tuple = this.tuples.poll();
+                        if (tuple == null)
+                            break;
+                        this.notifyAll();
+                    }
+                    pending.decrementAndGet();
+                    long start = System.nanoTime();
+                    try {
+                        this.callback.call(tuple);
+                    } catch (RuntimeException | Error e) {
+                        e.printStackTrace();
+                    }
+                    metrics.recordCallback(start);
+                }
+            } finally {
+                synchronized (this) {
+                    this.drainer = null;
+                    if (!this.tuples.isEmpty()) {
+                        // Encore des appels : la boîte repasse derrière les autres.
+                        workers.execute(this);
+                    } else {
+                        this.scheduled = false;
+                        this.closed = true;
+                        mailboxes.remove(this.callback, this);
+                        this.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    private final Map<Callback, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final ThreadPoolExecutor workers;
+    private final LindaMetrics metrics;
+
+    /**
+     * @param threads nombre de fils d'appel des callbacks.
+     * @param metrics mesures complétées par la durée des appels.
+     */
+    public CallbackDispatcher(int threads, LindaMetrics metrics) {
+        this.metrics = metrics;
+        AtomicInteger count = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                r -> new Thread(r, "linda-dispatch-" + count.incrementAndGet()));
+        // Les fils inactifs s'arrêtent : ils ne retardent pas la fin du programme.
+        this.workers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Confie un appel de callback à l'étage. Ne doit pas être appelé sous un
+     * verrou de l'espace, puisqu'il peut attendre que l'abonné se libère.
+     *
+     * @param callback le callback.
+     * @param tuple    le tuple qui le déclenche.
+     */
+    public void dispatch(Callback callback, Tuple tuple) {
+        while (!this.mailboxes.computeIfAbsent(callback, Mailbox::new).offer(tuple)) {
+            // Boîte oubliée entre sa recherche et le dépôt : on recommence.
+        }
+    }
+
+    /**
+     * @return le nombre d'appels en attente, tous callbacks confondus.
+     */
+    public int pending() {
+        return this.pending.get();
+    }
+}
@@ -1,31 +1,109 @@
 package linda.shm;
 
+import linda.AsyncLinda;
+import linda.AsynchronousCallback;
 import linda.Callback;
 import linda.Linda;
+import linda.TemplateMatcher;
 import linda.Tuple;
+import linda.shm.LindaMetrics.Operation;
 
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 /**
  * Implémentation de mémoire partagée Linda.
  *
+ * L'espace est découpé en partitions indépendantes selon l'arité des tuples
+ * et le type de leur premier champ (voir {@link ArityGroup} et
+ * {@link Partition}) : les opérations portant sur des signatures
+ * différentes ne prennent pas les mêmes verrous.
+ *
+ * Chaque écriture ou retrait de tuple est confié à un {@link TupleStore} :
+ * par défaut le journal {@link LogStore}, à côté du fichier de sauvegarde,
+ * ou le fichier projeté en mémoire {@link MappedTupleStore}.
+ *
+ * Les évènements déclenchés sont choisis sous verrou, mais leurs callbacks
+ * sont appelés par le {@link CallbackDispatcher}, hors des fils des
+ * écrivains.
+ *
+ * L'activité de l'espace se consulte par {@link #metrics()},
+ * {@link #tupleCounts()}, {@link #waitingReaders()},
+ * {@link #waitingTakers()} et {@link #pendingCallbacks()}.
+ *
  * @author Nathan Chavas
  * @author Mohamed Moudjeb
  */
-public class CentralizedLinda implements Linda {
+public class CentralizedLinda implements Linda, AsyncLinda {
 
-    private String filepath = "./.linda_backup";
-    private List<Tuple> sharedSpace;
-    private final List<Event> readerEventList;
-    private final List<Event> takerEventList;
+    /** Nombre d'enregistrements du journal entre deux points de contrôle. */
+    public static final int CHECKPOINT_INTERVAL = LogStore.CHECKPOINT_INTERVAL;
+
+    /** Délais des attentes asynchrones, communs aux espaces : le délai d'une attente terminée est retiré. */
+    private static final ScheduledThreadPoolExecutor TIMERS = timers();
+
+    /** Partitions de l'espace partagé, par arité. */
+    private final ConcurrentMap<Integer, ArityGroup> sharedSpace;
+    /** Sérialise les sauvegardes concurrentes du fichier. */
+    private final Object saveLock = new Object();
+    /** Sérialise la création des arités (voir {@link #exclusiveSnapshot}). */
+    private final Object creation = new Object();
+    /** Stockage persistant des tuples. */
+    private final TupleStore store;
+    /** Arités en cours de chargement (voir {@link #loadAsync(String)}). */
+    private final ConcurrentMap<Integer, CountDownLatch> loading = new ConcurrentHashMap<>();
+    /** Nombre de chargements en cours. */
+    private final AtomicInteger loads = new AtomicInteger();
+    /** Dernier numéro d'enregistrement des sauvegardes en cours de chargement. */
+    private volatile long loadingSeq = 0;
+    /** Mesures de l'activité de l'espace. */
+    private final LindaMetrics metrics = new LindaMetrics();
+    /** Surveillances des retraits (voir {@link #watch}), par arité. */
+    private final ConcurrentMap<Integer, Set<Watch>> watches = new ConcurrentHashMap<>();
+    /** Appels des callbacks des abonnés. */
+    private final CallbackDispatcher dispatcher =
+            new CallbackDispatcher(Runtime.getRuntime().availableProcessors(), this.metrics);
 
     public CentralizedLinda() {
-        this.sharedSpace = Collections.synchronizedList(new ArrayList<Tuple>());
-        this.readerEventList = Collections.synchronizedList(new ArrayList<Event>());
-        this.takerEventList = Collections.synchronizedList(new ArrayList<Event>());
+        this("./.linda_backup");
+    }
+
+    /**
+     * Construit un espace vide dont la sauvegarde et le journal sont rangés
+     * à un autre emplacement que le répertoire courant.
+     *
+     * @param filepath Chemin du fichier de sauvegarde.
+     */
+    public CentralizedLinda(String filepath) {
+        this(new LogStore(filepath));
+    }
+
+    /**
+     * Construit un espace dont les tuples sont confiés au stockage donné.
+     * Si le stockage contient déjà des tuples, l'espace les retrouve.
+     *
+     * @param store Stockage persistant des tuples.
+     */
+    public CentralizedLinda(TupleStore store) {
+        this.sharedSpace = new ConcurrentHashMap<>();
+        this.store = store;
+        store.attach(this);
     }
 
     /**
@@ -35,72 +113,173 @@ public class CentralizedLinda implements Linda {
      * @param tuple Tuple ajouté à l'espace partagé.
      */
     public void write(Tuple tuple) {
-        // Clonage du tuple pour éviter des mauvaises manipulations.
-        tuple = tuple.deepclone();
-        System.out.println("Notify readers");
-        this.notifyReaders(tuple);
-        System.out.println("Notify takers");
-        boolean taken = this.notifyTaker(tuple);
-        // Ajoute le tuple à l'espace partagé si personne ne l'a pris.
+        long start = System.nanoTime();
+        // Copie gelée du tuple pour éviter des mauvaises manipulations : un
+        // tuple déjà gelé et sans composant modifiable est stocké tel quel.
+        tuple = tuple.frozenCopy();
+        this.store.open();
+        boolean taken;
+        List<Event> fired = new ArrayList<>();
+        ArityGroup group = this.arity(tuple.size());
+        group.lock.readLock().lock();
+        try {
+            Partition partition = group.partition(Partition.typeOf(tuple));
+            synchronized (partition) {
+                taken = this.insert(group, partition, tuple, fired);
+            }
+        } finally {
+            group.lock.readLock().unlock();
+        }
+        // Les callbacks sont confiés au dispatcher une fois les verrous
+        // relâchés : le dépôt peut attendre un abonné saturé.
+        for (Event e : fired) {
+            this.fire(e.getCallback(), tuple);
+        }
+        // Un tuple pris au vol n'a jamais été dans l'espace : rien à enregistrer.
         if (!taken)
-            this.sharedSpace.add(tuple);
-        save(this.filepath);
+            this.store.commit();
+        this.metrics.record(Operation.WRITE, start);
     }
 
     /**
-     * Alerte les lecteurs en attente de l'ajout d'un tuple dans l'espace
-     * partagé.
-     * 
-     * @param tuple Tuple ajouté à l'espace partagé.
+     * Écrit un lot de tuples dans l'espace partagé. Les tuples sont regroupés
+     * par partition : chaque verrou n'est pris qu'une fois par lot, et le lot
+     * n'attend qu'une fois le disque.
+     *
+     * @param tuples Tuples ajoutés à l'espace partagé.
      */
-    private void notifyReaders(Tuple tuple) {
-        ArrayList<Event> toRemove = new ArrayList<>();
-        // Accès restreint à la liste des lecteurs.
-        synchronized (this.readerEventList) {
-            // On parcours les lecteurs en attente
-            for (Event readEvent : readerEventList) {
-                if (readEvent.isMatching(tuple)) {
-                    System.out.println("Motif trouvé");
-                    //readEvent.call(tuple);
-                    // Lecture effectuée
-                    toRemove.add(readEvent);
+    @Override
+    public void writeAll(Collection<Tuple> tuples) {
+        long start = System.nanoTime();
+        // Regroupement par arité puis par type du premier champ, en gardant
+        // l'ordre d'écriture au sein de chaque partition.
+        Map<Integer, Map<Class<?>, List<Tuple>>> batches = new LinkedHashMap<>();
+        for (Tuple tuple : tuples) {
+            tuple = tuple.frozenCopy();
+            batches.computeIfAbsent(tuple.size(), k -> new LinkedHashMap<>())
+                    .computeIfAbsent(Partition.typeOf(tuple), k -> new ArrayList<>())
+                    .add(tuple);
+        }
+        if (batches.isEmpty())
+            return;
+        this.store.open();
+        boolean recorded = false;
+        List<Event> fired = new ArrayList<>();
+        // Tuple déclencheur de chaque évènement de fired
+        List<Tuple> firing = new ArrayList<>();
+        for (Map.Entry<Integer, Map<Class<?>, List<Tuple>>> arity : batches.entrySet()) {
+            ArityGroup group = this.arity(arity.getKey());
+            group.lock.readLock().lock();
+            try {
+                for (Map.Entry<Class<?>, List<Tuple>> batch : arity.getValue().entrySet()) {
+                    Partition partition = group.partition(batch.getKey());
+                    synchronized (partition) {
+                        for (Tuple tuple : batch.getValue()) {
+                            if (!this.insert(group, partition, tuple, fired))
+                                recorded = true;
+                            while (firing.size() < fired.size()) {
+                                firing.add(tuple);
+                            }
+                        }
+                    }
                 }
+            } finally {
+                group.lock.readLock().unlock();
             }
-            // On retire tous les évenements de lecture effectués
-            for (Event e : toRemove) {
-                readerEventList.remove(e);
-                e.call(tuple);
+        }
+        for (int i = 0; i < fired.size(); i++) {
+            this.fire(fired.get(i).getCallback(), firing.get(i));
+        }
+        if (recorded)
+            this.store.commit();
+        this.metrics.record(Operation.WRITE_ALL, start);
+    }
+
+    /**
+     * Ajoute un tuple à sa partition, ou le donne à un consommateur en
+     * attente, et retire les évènements qu'il déclenche. L'appelant détient
+     * le verrou de l'arité en lecture et le moniteur de la partition, et le
+     * stockage est ouvert.
+     *
+     * @param group     Arité du tuple.
+     * @param partition Partition du tuple.
+     * @param tuple     Tuple ajouté à l'espace partagé.
+     * @param fired     Évènements à déclencher, complétés par ceux du tuple.
+     * @return vrai si un consommateur a pris le tuple, qui n'a donc pas été
+     *         ajouté ni enregistré.
+     */
+    private boolean insert(ArityGroup group, Partition partition, Tuple tuple, List<Event> fired) {
+        this.notifyReaders(group, partition, tuple, fired);
+        boolean taken = this.notifyTaker(group, partition, tuple, fired);
+        // Ajoute le tuple à l'espace partagé si personne ne l'a pris.
+        if (!taken) {
+            partition.tuples.add(tuple);
+            this.store.written(partition, tuple);
+        }
+        return taken;
+    }
+
+    /**
+     * Retire les lecteurs en attente de l'ajout d'un tuple dans l'espace
+     * partagé. L'appelant détient le verrou de l'arité en lecture et le
+     * moniteur de la partition.
+     * 
+     * @param group     Arité du tuple.
+     * @param partition Partition du tuple.
+     * @param tuple     Tuple ajouté à l'espace partagé.
+     * @param fired     Évènements à déclencher, complétés par les lecteurs.
+     */
+    private void notifyReaders(ArityGroup group, Partition partition, Tuple tuple, List<Event> fired) {
+        fired.addAll(partition.readers.removeAllMatching(tuple));
+        // Sous le verrou de l'arité en lecture, les registres communs ne
+        // peuvent que se vider : s'ils sont vides, inutile d'en prendre le
+        // moniteur.
+        if (group.wide.readers.size() > 0) {
+            synchronized (group.wide) {
+                fired.addAll(group.wide.readers.removeAllMatching(tuple));
             }
         }
     }
 
     /**
-     * Alerte les consomateurs en attente de l'ajout d'un tuple dans l'espace
-     * partagé.
+     * Retire un consommateur en attente de l'ajout d'un tuple dans l'espace
+     * partagé : le plus ancien de ceux dont le motif correspond, qu'il
+     * attende dans la partition ou dans le registre commun de l'arité. Les
+     * consommateurs sont ainsi servis dans l'ordre de leur arrivée.
+     * L'appelant détient le verrou de l'arité en lecture et le moniteur de
+     * la partition.
      * 
-     * @param tuple Tuple ajouté à l'espace partagé.
+     * @param group     Arité du tuple.
+     * @param partition Partition du tuple.
+     * @param tuple     Tuple ajouté à l'espace partagé.
+     * @param fired     Évènements à déclencher, complétés par le consommateur.
+     * @return vrai si un consommateur a pris le tuple.
      */
-    private boolean notifyTaker(Tuple tuple) {
-        boolean taken = false;
-        Event takeEvent = null;
-        synchronized (this.takerEventList) {
-            Iterator<Event> someEvent = this.takerEventList.iterator();
-            // Tant qu'il y a un évènement en mode take et que le tuple n'a pas été pris
-            while (someEvent.hasNext() && !taken) {
-                takeEvent = someEvent.next();
-                // Si le tuple à écrire correspond au motif associé à l'évènement
-                if (takeEvent.isMatching(tuple)) {
-                    // Appel du callback de l'évènement
-                    takeEvent.call(tuple);
-                    // On signifie qu'on a consommé le tuple pour arrêter de chercher
-                    taken = true;
+    private boolean notifyTaker(ArityGroup group, Partition partition, Tuple tuple, List<Event> fired) {
+        while (true) {
+            Event takeEvent = partition.takers.oldestMatching(tuple);
+            WaiterRegistry registry = partition.takers;
+            if (group.wide.takers.size() > 0) {
+                synchronized (group.wide) {
+                    Event wide = group.wide.takers.oldestMatching(tuple);
+                    if (wide != null && (takeEvent == null || wide.getSeq() < takeEvent.getSeq())) {
+                        group.wide.takers.remove(wide);
+                        takeEvent = wide;
+                        registry = null;
+                    }
                 }
             }
-            // Enlève l'évènement du registre
-            if (taken)
-                takerEventList.remove(takeEvent);
+            if (takeEvent == null)
+                return false;
+            if (registry != null)
+                registry.remove(takeEvent);
+            // Un consommateur qui vient d'abandonner laisse la place au suivant.
+            if (takeEvent.fire()) {
+                // Le tuple est consommé
+                fired.add(takeEvent);
+                return true;
+            }
         }
-        return taken;
     }
 
     /**
@@ -114,12 +293,28 @@ public class CentralizedLinda implements Linda {
      */
     @Override
     public Tuple read(Tuple template) {
-        TupleCallback cb = new TupleCallback();
-        System.out.println(template);
-        eventRegister(Linda.eventMode.READ, Linda.eventTiming.IMMEDIATE, template, cb);
-        cb.waitCallback();
-        System.out.println("Je lis : " + cb.getTuple());
-        return cb.getTuple();
+        long start = System.nanoTime();
+        Tuple tuple = this.await(Linda.eventMode.READ, template, -1);
+        this.metrics.record(Operation.READ, start);
+        return tuple;
+    }
+
+    /**
+     * Lis et renvoi un tuple de l'espace partagé correspondant au motif, en
+     * l'attendant au plus le délai donné.
+     *
+     * @param template Le motif recherché.
+     * @param timeout  Le délai d'attente maximal.
+     * @param unit     L'unité du délai.
+     * @return Le tuple trouvé, null si le délai est dépassé ou si le fil a été
+     *         interrompu.
+     */
+    @Override
+    public Tuple read(Tuple template, long timeout, TimeUnit unit) {
+        long start = System.nanoTime();
+        Tuple tuple = this.await(Linda.eventMode.READ, template, Math.max(0, unit.toNanos(timeout)));
+        this.metrics.record(Operation.READ, start);
+        return tuple;
     }
 
     /**
@@ -132,13 +327,103 @@ public class CentralizedLinda implements Linda {
      * @see Tuple
      */
     public Tuple take(Tuple template) {
+        long start = System.nanoTime();
+        Tuple tuple = this.await(Linda.eventMode.TAKE, template, -1);
+        this.metrics.record(Operation.TAKE, start);
+        return tuple;
+    }
+
+    /**
+     * Retire et renvoi un tuple de l'espace partagé correspondant au motif,
+     * en l'attendant au plus le délai donné.
+     *
+     * @param template Le motif recherché.
+     * @param timeout  Le délai d'attente maximal.
+     * @param unit     L'unité du délai.
+     * @return Le tuple retiré, null si le délai est dépassé ou si le fil a
+     *         été interrompu.
+     */
+    @Override
+    public Tuple take(Tuple template, long timeout, TimeUnit unit) {
+        long start = System.nanoTime();
+        Tuple tuple = this.await(Linda.eventMode.TAKE, template, Math.max(0, unit.toNanos(timeout)));
+        this.metrics.record(Operation.TAKE, start);
+        return tuple;
+    }
+
+    /**
+     * Attente d'un tuple, commune aux read et take bloquants.
+     * Si le délai est dépassé ou si le fil est interrompu, l'évènement est
+     * annulé et retiré de son registre ; s'il a déjà été déclenché, le tuple
+     * est en route et il est attendu.
+     *
+     * @param mode     Lecture ou retrait.
+     * @param template Le motif recherché.
+     * @param nanos    Le délai en nanosecondes, négatif pour attendre sans limite.
+     * @return Le tuple, null si le délai est dépassé ou si le fil a été
+     *         interrompu (son statut d'interruption est alors conservé).
+     */
+    private Tuple await(eventMode mode, Tuple template, long nanos) {
         TupleCallback cb = new TupleCallback();
-        eventRegister(Linda.eventMode.TAKE, Linda.eventTiming.IMMEDIATE, template, cb);
-        cb.waitCallback();
-        System.out.println("Je prends : " + cb.getTuple());
+        Event event = this.register(mode, Linda.eventTiming.IMMEDIATE, template, cb);
+        if (!cb.waitCallback(nanos)) {
+            if (event != null && this.cancel(event))
+                return null;
+            // Déclenché entre-temps : le callback est sur le point d'être appelé.
+            cb.waitCallback();
+        }
         return cb.getTuple();
     }
 
+    /**
+     * Annule un évènement en attente et le retire de son registre.
+     *
+     * @param event l'évènement.
+     * @return faux si l'évènement a déjà été déclenché.
+     */
+    private boolean cancel(Event event) {
+        if (!event.cancel())
+            return false;
+        // Retiré sous les mêmes verrous que ceux des écrivains qui le
+        // consultent ; un écrivain a pu l'écarter entre-temps.
+        event.group.lock.readLock().lock();
+        try {
+            synchronized (event.partition) {
+                event.registry.remove(event);
+            }
+        } finally {
+            event.group.lock.readLock().unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Retire n tuples de l'espace partagé correspondant au motif. Les tuples
+     * déjà présents sont retirés d'un coup ; se met ensuite en attente
+     * passive des suivants.
+     *
+     * @param template Le motif recherché.
+     * @param n        Le nombre de tuples à retirer.
+     * @return Les n tuples retirés.
+     */
+    @Override
+    public Collection<Tuple> take(Tuple template, int n) {
+        long start = System.nanoTime();
+        List<Tuple> list = new ArrayList<>(n);
+        this.remove(TemplateMatcher.of(template), n, list);
+        if (!list.isEmpty())
+            this.store.commit();
+        while (list.size() < n) {
+            Tuple tuple = this.await(Linda.eventMode.TAKE, template, -1);
+            // Interrompu : les tuples déjà retirés sont rendus à l'appelant.
+            if (tuple == null)
+                break;
+            list.add(tuple);
+        }
+        this.metrics.record(Operation.TAKE_N, start);
+        return list;
+    }
+
     /**
      * Read non bloquant.
      *
@@ -148,18 +433,19 @@ public class CentralizedLinda implements Linda {
      */
     @Override
     public Tuple tryRead(Tuple template) {
-        synchronized (this.sharedSpace) {
-            // Parcours de la mémoire partagée
-            for (Tuple tuple : this.sharedSpace) {
-                // Si un tuple correspond au motif
-                if (tuple.matches(template)) {
-                    // Renvoi le tuple
-                    return tuple;
-                }
+        long start = System.nanoTime();
+        Tuple tuple = null;
+        ArityGroup group = this.existingArity(template.size());
+        if (group != null) {
+            group.lock.readLock().lock();
+            try {
+                tuple = this.find(group, TemplateMatcher.of(template), false);
+            } finally {
+                group.lock.readLock().unlock();
             }
         }
-        // Si aucun tuple n'a pas été trouvé
-        return null;
+        this.metrics.record(Operation.TRY_READ, start);
+        return tuple;
     }
 
     /**
@@ -171,22 +457,120 @@ public class CentralizedLinda implements Linda {
      */
     @Override
     public Tuple tryTake(Tuple template) {
-        synchronized (this.sharedSpace) {
-            // Parcours de la mémoire partagée
-            for (Tuple tuple : this.sharedSpace) {
-                // Si un tuple correspond au motif
-                if (tuple.matches(template)) {
-                    // enlève le premier tuple trouvé de la mémoire
-                    this.sharedSpace.remove(tuple);
-                    // Sauvegarde de l'espace partagé
-                    save(this.filepath);
-                    // Renvoi le tuple
-                    return tuple;
+        long start = System.nanoTime();
+        Tuple tuple = this.remove(TemplateMatcher.of(template));
+        if (tuple != null) {
+            // Sauvegarde du retrait
+            this.store.commit();
+        }
+        this.metrics.record(Operation.TRY_TAKE, start);
+        return tuple;
+    }
+
+    /**
+     * Take non bloquant d'au plus n tuples.
+     *
+     * @param template Le motif des tuples que l'on souhaite prendre.
+     * @param n        Le nombre maximal de tuples à prendre.
+     * @return Les tuples trouvés en mémoire correspondant au template. Vide
+     *         si aucun tuple correspondant.
+     */
+    @Override
+    public Collection<Tuple> tryTake(Tuple template, int n) {
+        long start = System.nanoTime();
+        List<Tuple> list = new ArrayList<>();
+        this.remove(TemplateMatcher.of(template), n, list);
+        if (!list.isEmpty())
+            this.store.commit();
+        this.metrics.record(Operation.TRY_TAKE_N, start);
+        return list;
+    }
+
+    /**
+     * Retire au plus n tuples correspondant au motif et journalise les
+     * retraits sans attendre qu'ils soient sur disque.
+     *
+     * @param matcher Le motif compilé des tuples que l'on souhaite prendre.
+     * @param n       Le nombre maximal de tuples à retirer.
+     * @param list    Liste complétée par les tuples retirés.
+     */
+    private void remove(TemplateMatcher matcher, int n, List<Tuple> list) {
+        this.drain(matcher, n, list::addAll);
+    }
+
+    /**
+     * Retire au plus n tuples correspondant au motif, partition par
+     * partition : chaque partition est parcourue une seule fois, sous son
+     * moniteur, et ses tuples retirés sont livrés d'un bloc une fois les
+     * verrous relâchés. Les retraits sont journalisés sans attendre qu'ils
+     * soient sur disque.
+     *
+     * @param matcher Le motif compilé des tuples que l'on souhaite prendre.
+     * @param n       Le nombre maximal de tuples à retirer.
+     * @param chunks  Reçoit les tuples retirés de chaque partition.
+     * @return le nombre de tuples retirés.
+     */
+    private int drain(TemplateMatcher matcher, int n, Consumer<List<Tuple>> chunks) {
+        ArityGroup group = this.existingArity(matcher.template().size());
+        if (group == null || n <= 0)
+            return 0;
+        this.store.open();
+        List<Partition> partitions;
+        group.lock.readLock().lock();
+        try {
+            partitions = this.partitionsOf(group, matcher.template());
+        } finally {
+            group.lock.readLock().unlock();
+        }
+        int count = 0;
+        for (Partition partition : partitions) {
+            List<Tuple> removed;
+            group.lock.readLock().lock();
+            try {
+                synchronized (partition) {
+                    removed = partition.tuples.removeAll(matcher, n - count);
+                    for (Tuple tuple : removed) {
+                        this.store.taken(partition, tuple);
+                    }
                 }
+            } finally {
+                group.lock.readLock().unlock();
             }
+            if (!removed.isEmpty()) {
+                for (Tuple tuple : removed) {
+                    this.removed(tuple);
+                }
+                count += removed.size();
+                chunks.accept(removed);
+            }
+            if (count >= n)
+                break;
         }
-        // Si aucun tuple n'a été trouvé
-        return null;
+        return count;
+    }
+
+    /**
+     * Retire un tuple correspondant au motif et journalise le retrait, sans
+     * attendre qu'il soit sur disque.
+     *
+     * @param matcher Le motif compilé du tuple que l'on souhaite prendre.
+     * @return Le tuple retiré, null si aucun tuple correspondant.
+     */
+    private Tuple remove(TemplateMatcher matcher) {
+        ArityGroup group = this.existingArity(matcher.template().size());
+        if (group == null)
+            return null;
+        this.store.open();
+        Tuple tuple;
+        group.lock.readLock().lock();
+        try {
+            tuple = this.find(group, matcher, true);
+        } finally {
+            group.lock.readLock().unlock();
+        }
+        if (tuple != null)
+            this.removed(tuple);
+        return tuple;
     }
 
     /**
@@ -200,16 +584,37 @@ public class CentralizedLinda implements Linda {
      */
     @Override
     public Collection<Tuple> takeAll(Tuple template) {
-        Tuple tuple;
-        Collection<Tuple> list = new ArrayList<Tuple>();
-        while ((tuple = tryTake(template)) != null) {
-            list.add(tuple);
-        }
-        System.out.println("Je prend tout : " + list);
-        save(this.filepath);
+        long start = System.nanoTime();
+        List<Tuple> list = new ArrayList<Tuple>();
+        this.remove(TemplateMatcher.of(template), Integer.MAX_VALUE, list);
+        // Une seule attente du disque pour tous les retraits
+        if (!list.isEmpty())
+            this.store.commit();
+        this.metrics.record(Operation.TAKE_ALL, start);
         return list;
     }
 
+    /**
+     * Retire tous les tuples correspondants au template et les livre au fur
+     * et à mesure, sans construire la collection complète.
+     * Les tuples sont livrés partition par partition, une fois leur retrait
+     * sur disque et hors de tout verrou : le consommateur peut donc utiliser
+     * l'espace partagé.
+     *
+     * @param template Le motif recherché.
+     * @param sink     Reçoit chaque tuple retiré.
+     * @return Le nombre de tuples retirés.
+     */
+    public int takeAll(Tuple template, Consumer<? super Tuple> sink) {
+        long start = System.nanoTime();
+        int count = this.drain(TemplateMatcher.of(template), Integer.MAX_VALUE, chunk -> {
+            this.store.commit();
+            chunk.forEach(sink);
+        });
+        this.metrics.record(Operation.TAKE_ALL, start);
+        return count;
+    }
+
     /**
      * Recupère tous les tuples correspondants au template et
      * les laisse dans la mémoire partagée.
@@ -221,16 +626,60 @@ public class CentralizedLinda implements Linda {
      */
     @Override
     public Collection<Tuple> readAll(Tuple template) {
+        long start = System.nanoTime();
         Collection<Tuple> list = new ArrayList<Tuple>();
-        for (Tuple tuple : this.sharedSpace) {
-            if (tuple.matches(template)) {
-                list.add(tuple);
+        ArityGroup group = this.existingArity(template.size());
+        if (group != null) {
+            TemplateMatcher matcher = TemplateMatcher.of(template);
+            group.lock.readLock().lock();
+            try {
+                for (Partition partition : this.partitionsOf(group, template)) {
+                    synchronized (partition) {
+                        list.addAll(partition.tuples.findAll(matcher));
+                    }
+                }
+            } finally {
+                group.lock.readLock().unlock();
             }
         }
-        System.out.println("Je lis tout: " + list.toString());
+        this.metrics.record(Operation.READ_ALL, start);
         return list;
     }
 
+    /**
+     * Parcourt paresseusement les tuples correspondants au template, sans
+     * les retirer ni construire la collection complète.
+     * Les partitions concernées sont figées dès l'appel, comme pour
+     * readAll : seules les références des tuples candidats sont copiées sous
+     * leur moniteur, et les tuples ne sont comparés au motif qu'au fil de la
+     * consommation du flux. Un consommateur qui s'arrête au premier tuple ne
+     * paie donc pas les comparaisons des suivants.
+     *
+     * @param template Le motif recherché.
+     * @return Le flux des tuples correspondant au motif.
+     */
+    @Override
+    public Stream<Tuple> readStream(Tuple template) {
+        ArityGroup group = this.existingArity(template.size());
+        if (group == null)
+            return Stream.empty();
+        TemplateMatcher matcher = TemplateMatcher.of(template);
+        List<Tuple[]> candidates = new ArrayList<>();
+        group.lock.readLock().lock();
+        try {
+            for (Partition partition : this.partitionsOf(group, template)) {
+                synchronized (partition) {
+                    candidates.add(partition.tuples.candidatesOf(template));
+                }
+            }
+        } finally {
+            group.lock.readLock().unlock();
+        }
+        return candidates.stream()
+                .flatMap(Arrays::stream)
+                .filter(matcher::matches);
+    }
+
     /**
      * Procédure eventRegister permettant d'enregistrer les évenements dans la liste
      * des
@@ -244,46 +693,655 @@ public class CentralizedLinda implements Linda {
      */
     @Override
     public void eventRegister(eventMode mode, eventTiming timing, Tuple template, Callback callback) {
-        System.out.println("Evenement : " + mode.name() + " " + template.toString());
-        // Si c'est un évenement immédiat...
-        if (timing.equals(eventTiming.IMMEDIATE)) {
-            // Si c'est une lecture...
-            if (mode.equals(eventMode.READ)) {
-                // Tentative de lecture
-                Tuple tuple = this.tryRead(template);
+        long start = System.nanoTime();
+        this.register(mode, timing, template, callback);
+        this.metrics.record(Operation.EVENT_REGISTER, start);
+    }
+
+    /**
+     * Enregistre un évènement comme {@link #eventRegister}, en permettant de
+     * l'abandonner tant qu'il n'a pas été déclenché : un serveur peut ainsi
+     * attendre un tuple pour le compte d'un client sans bloquer de fil, et
+     * renoncer si le client s'en va.
+     *
+     * @param mode     Le mode de l'évènement (read ou take).
+     * @param timing   Le timing de l'évènement (immédiat ou futur).
+     * @param template Le template du tuple à chercher.
+     * @param callback Le callback a appeler lors de l'évènement.
+     * @return L'abonnement, à annuler pour abandonner l'évènement.
+     */
+    public Subscription subscribe(eventMode mode, eventTiming timing, Tuple template, Callback callback) {
+        long start = System.nanoTime();
+        Event event = this.register(mode, timing, template, callback);
+        this.metrics.record(Operation.EVENT_REGISTER, start);
+        return () -> event != null && this.cancel(event);
+    }
+
+    /**
+     * Écrit un tuple ; l'écriture n'attend que le stockage, la future est
+     * donc complétée dès le retour.
+     *
+     * @param tuple Tuple ajouté à l'espace partagé.
+     */
+    @Override
+    public CompletableFuture<Void> writeAsync(Tuple tuple) {
+        this.write(tuple);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public CompletableFuture<Void> writeAllAsync(Collection<Tuple> tuples) {
+        this.writeAll(tuples);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Take asynchrone : l'attente est un évènement dont le callback complète
+     * la future, aucun fil n'est bloqué.
+     *
+     * @param template Le motif recherché.
+     * @return La future du tuple retiré.
+     */
+    @Override
+    public CompletableFuture<Tuple> takeAsync(Tuple template) {
+        return this.awaitAsync(Linda.eventMode.TAKE, template, -1);
+    }
+
+    @Override
+    public CompletableFuture<Tuple> readAsync(Tuple template) {
+        return this.awaitAsync(Linda.eventMode.READ, template, -1);
+    }
+
+    @Override
+    public CompletableFuture<Tuple> takeAsync(Tuple template, long timeout, TimeUnit unit) {
+        return this.awaitAsync(Linda.eventMode.TAKE, template, Math.max(0, unit.toNanos(timeout)));
+    }
+
+    @Override
+    public CompletableFuture<Tuple> readAsync(Tuple template, long timeout, TimeUnit unit) {
+        return this.awaitAsync(Linda.eventMode.READ, template, Math.max(0, unit.toNanos(timeout)));
+    }
+
+    /**
+     * Attente asynchrone d'un tuple, commune aux read et take asynchrones.
+     * Annuler la future retire l'évènement ; le délai dépassé aussi, la
+     * future étant alors complétée par null.
+     *
+     * @param mode     Lecture ou retrait.
+     * @param template Le motif recherché.
+     * @param nanos    Le délai en nanosecondes, négatif pour attendre sans limite.
+     * @return La future du tuple.
+     */
+    private CompletableFuture<Tuple> awaitAsync(eventMode mode, Tuple template, long nanos) {
+        long start = System.nanoTime();
+        boolean take = mode.equals(Linda.eventMode.TAKE);
+        FutureCallback cb = new FutureCallback(this, take);
+        Event event = this.register(mode, Linda.eventTiming.IMMEDIATE, template, cb);
+        if (event != null) {
+            cb.future.whenComplete((t, e) -> {
+                if (cb.future.isCancelled())
+                    this.cancel(event);
+            });
+            if (nanos >= 0) {
+                ScheduledFuture<?> timer = TIMERS.schedule(() -> {
+                    if (this.cancel(event))
+                        cb.future.complete(null);
+                }, nanos, TimeUnit.NANOSECONDS);
+                cb.future.whenComplete((t, e) -> timer.cancel(false));
+            }
+        }
+        cb.future.whenComplete((t, e) -> this.metrics.record(take ? Operation.TAKE : Operation.READ, start));
+        return cb.future;
+    }
+
+    /**
+     * Take asynchrone de n tuples : les tuples présents sont retirés d'un
+     * coup, puis les suivants attendus un à un. Annuler la future rend à
+     * l'espace les tuples déjà retirés.
+     *
+     * @param template Le motif recherché.
+     * @param n        Le nombre de tuples à retirer.
+     * @return La future des n tuples retirés.
+     */
+    @Override
+    public CompletableFuture<Collection<Tuple>> takeAsync(Tuple template, int n) {
+        List<Tuple> list = new ArrayList<>(n);
+        this.remove(TemplateMatcher.of(template), n, list);
+        if (!list.isEmpty())
+            this.store.commit();
+        return TakeCollector.collect(CompletableFuture.completedFuture(list), n,
+                () -> this.takeAsync(template), this::writeAll);
+    }
+
+    @Override
+    public CompletableFuture<Tuple> tryTakeAsync(Tuple template) {
+        return CompletableFuture.completedFuture(this.tryTake(template));
+    }
+
+    @Override
+    public CompletableFuture<Tuple> tryReadAsync(Tuple template) {
+        return CompletableFuture.completedFuture(this.tryRead(template));
+    }
+
+    @Override
+    public CompletableFuture<Collection<Tuple>> tryTakeAsync(Tuple template, int n) {
+        return CompletableFuture.completedFuture(this.tryTake(template, n));
+    }
+
+    @Override
+    public CompletableFuture<Collection<Tuple>> takeAllAsync(Tuple template) {
+        return CompletableFuture.completedFuture(this.takeAll(template));
+    }
+
+    @Override
+    public CompletableFuture<Collection<Tuple>> readAllAsync(Tuple template) {
+        return CompletableFuture.completedFuture(this.readAll(template));
+    }
+
+    /**
+     * Surveille les changements de l'espace pour un motif : le callback est
+     * appelé une seule fois, au premier dépôt ou retrait d'un tuple
+     * correspondant. Un cache de lectures peut ainsi savoir quand sa copie
+     * n'est plus à jour.
+     *
+     * @param template Le motif surveillé.
+     * @param callback Le callback, appelé avec le tuple déposé ou retiré.
+     * @return La surveillance, à annuler pour l'abandonner.
+     */
+    public Subscription watch(Tuple template, Callback callback) {
+        Watch watch = new Watch(template, callback);
+        Set<Watch> set = this.watches.computeIfAbsent(template.size(), k -> ConcurrentHashMap.newKeySet());
+        set.add(watch);
+        watch.written = this.subscribe(Linda.eventMode.READ, Linda.eventTiming.FUTURE, template, watch);
+        // Retrait survenu pendant l'enregistrement du dépôt
+        if (watch.done.get())
+            watch.written.cancel();
+        return watch::cancel;
+    }
+
+    /**
+     * Prévient les surveillances concernées par le retrait d'un tuple. Appelé
+     * hors verrous, une fois le tuple retiré.
+     *
+     * @param tuple le tuple retiré.
+     */
+    private void removed(Tuple tuple) {
+        Set<Watch> set = this.watches.get(tuple.size());
+        if (set == null || set.isEmpty())
+            return;
+        for (Watch watch : set) {
+            if (watch.matcher.matches(tuple))
+                watch.call(tuple);
+        }
+    }
+
+    /**
+     * Surveillance d'un motif (voir {@link #watch}) : déclenchée une seule
+     * fois, par le dépôt d'un tuple correspondant (évènement read futur) ou
+     * par son retrait.
+     */
+    private final class Watch implements DirectCallback {
+        private final TemplateMatcher matcher;
+        private final Callback callback;
+        private final AtomicBoolean done = new AtomicBoolean();
+        private volatile Subscription written;
+
+        Watch(Tuple template, Callback callback) {
+            this.matcher = TemplateMatcher.of(template);
+            this.callback = callback;
+        }
+
+        public void call(Tuple tuple) {
+            if (!this.finish())
+                return;
+            CentralizedLinda.this.fire(this.callback, tuple);
+        }
+
+        boolean cancel() {
+            return this.finish();
+        }
+
+        /** Retire la surveillance ; faux si elle l'était déjà. */
+        private boolean finish() {
+            if (!this.done.compareAndSet(false, true))
+                return false;
+            Set<Watch> set = CentralizedLinda.this.watches.get(this.matcher.template().size());
+            if (set != null)
+                set.remove(this);
+            Subscription s = this.written;
+            if (s != null)
+                s.cancel();
+            return true;
+        }
+    }
+
+    /**
+     * Enregistrement d'un évènement, commun à {@link #eventRegister} et aux
+     * opérations bloquantes, qui sont mesurées séparément.
+     *
+     * @return l'évènement s'il a été mis en attente, null si le callback a
+     *         été appelé immédiatement.
+     */
+    private Event register(eventMode mode, eventTiming timing, Tuple template, Callback callback) {
+        boolean immediate = timing.equals(eventTiming.IMMEDIATE);
+        boolean take = mode.equals(eventMode.TAKE);
+        if (take && immediate)
+            this.store.open();
+        Event event = new Event(template, callback);
+        ArityGroup group = this.arity(template.size());
+        Tuple tuple = null;
+        if (ArityGroup.isWide(template)) {
+            // Le motif peut concerner toutes les partitions de l'arité :
+            // recherche et enregistrement se font en excluant les écritures.
+            group.lock.writeLock().lock();
+            try {
+                // Si c'est un évenement immédiat, tentative de lecture ou de retrait
+                if (immediate)
+                    tuple = this.find(group, event.getMatcher(), take);
+                // Si aucun tuple n'a été trouvé : ajout de l'évenement dans
+                // le registre correspondant...
                 if (tuple == null) {
-                    // Si aucun tuple à lire n'a été trouvé dans l'espace partagé : ajout de
-                    // l'évenement dans le registre correspondant...
-                    this.readerEventList.add(new Event(template, callback));
-                } else {
-                    // Sinon on appelle le callback associé à l'évènement
-                    callback.call(tuple);
+                    synchronized (group.wide) {
+                        this.enqueue(event, group, group.wide, take);
+                    }
                 }
-            } else {
-                // Si c'est un retrait...
-                // Tentative de retrait
-                Tuple tuple = this.tryTake(template);
-                if (tuple == null) {
-                    // Si aucun tuple à retirer n'a été trouvé dans l'espace partagé : ajout de
-                    // l'évenement dans le registre correspondant...
-                    this.takerEventList.add(new Event(template, callback));
-                } else {
-                    // Sinon on appelle le callback associé à l'évènement
-                    callback.call(tuple);
+            } finally {
+                group.lock.writeLock().unlock();
+            }
+        } else {
+            // Le motif ne concerne qu'une partition : recherche et
+            // enregistrement se font sous son seul moniteur.
+            group.lock.readLock().lock();
+            try {
+                Partition partition = group.partition(Partition.typeOf(template));
+                synchronized (partition) {
+                    if (immediate && take) {
+                        tuple = partition.tuples.remove(event.getMatcher());
+                        if (tuple != null)
+                            this.store.taken(partition, tuple);
+                    } else if (immediate) {
+                        tuple = partition.tuples.find(event.getMatcher());
+                    }
+                    if (tuple == null)
+                        this.enqueue(event, group, partition, take);
+                }
+            } finally {
+                group.lock.readLock().unlock();
+            }
+        }
+        if (tuple != null) {
+            if (take) {
+                this.store.commit();
+                this.removed(tuple);
+            }
+            // Un tuple a été trouvé : on appelle le callback associé à l'évènement
+            this.fire(callback, tuple);
+            return null;
+        }
+        return event;
+    }
+
+    /**
+     * Met un évènement en attente dans un registre de la partition.
+     * L'appelant détient le verrou de l'arité et le moniteur de la partition.
+     */
+    private void enqueue(Event event, ArityGroup group, Partition partition, boolean take) {
+        event.group = group;
+        event.partition = partition;
+        event.registry = take ? partition.takers : partition.readers;
+        event.registry.add(event);
+    }
+
+    /**
+     * Déclenche un callback. Les attentes des read et take bloquants ou
+     * asynchrones, les {@link DirectCallback} et les callbacks déjà
+     * asynchrones sont appelés directement : ils ne font que passer la main.
+     * Les autres sont confiés au dispatcher.
+     *
+     * @param callback le callback.
+     * @param tuple    le tuple qui le déclenche.
+     */
+    private void fire(Callback callback, Tuple tuple) {
+        if (callback instanceof TupleCallback || callback instanceof FutureCallback
+                || callback instanceof DirectCallback || callback instanceof AsynchronousCallback)
+            callback.call(tuple);
+        else
+            this.dispatcher.dispatch(callback, tuple);
+    }
+
+    /**
+     * Renvoie les partitions d'une arité, en la créant au besoin.
+     *
+     * @param size l'arité.
+     * @return les partitions de cette arité.
+     */
+    private ArityGroup arity(int size) {
+        this.awaitLoaded(size);
+        this.store.prepare(size);
+        return this.group(size);
+    }
+
+    /**
+     * Renvoie les partitions d'une arité, sans la créer.
+     *
+     * @param size l'arité.
+     * @return les partitions de cette arité, null si elle n'a jamais servi.
+     */
+    private ArityGroup existingArity(int size) {
+        this.awaitLoaded(size);
+        this.store.prepare(size);
+        return this.sharedSpace.get(size);
+    }
+
+    /**
+     * Renvoie les partitions d'une arité, en la créant au besoin, sans
+     * attendre qu'elle soit chargée : réservé au chargement et au stockage.
+     */
+    private ArityGroup group(int size) {
+        ArityGroup group = this.sharedSpace.get(size);
+        if (group != null)
+            return group;
+        synchronized (this.creation) {
+            return this.sharedSpace.computeIfAbsent(size, k -> new ArityGroup());
+        }
+    }
+
+    /**
+     * Attend la fin du chargement d'une arité, si elle est en cours.
+     * Ne doit pas être appelé sous un verrou de l'espace.
+     *
+     * @param size l'arité.
+     */
+    private void awaitLoaded(int size) {
+        if (this.loads.get() == 0)
+            return;
+        CountDownLatch gate = this.loading.get(size);
+        if (gate != null)
+            awaitUninterruptibly(gate);
+    }
+
+    /**
+     * Attend la fin du chargement de toutes les arités.
+     */
+    private void awaitLoaded() {
+        if (this.loads.get() == 0)
+            return;
+        for (CountDownLatch gate : this.loading.values()) {
+            awaitUninterruptibly(gate);
+        }
+    }
+
+    private static ScheduledThreadPoolExecutor timers() {
+        ScheduledThreadPoolExecutor timers = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "linda-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        timers.setRemoveOnCancelPolicy(true);
+        return timers;
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch gate) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                gate.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Ajoute à l'espace des tuples qui viennent de son stockage : ils ne
+     * sont donc pas enregistrés à nouveau, et personne ne peut les attendre
+     * puisque le stockage les restaure avant tout accès à leur arité.
+     *
+     * @param tuples les tuples restaurés, gelés.
+     */
+    void restore(Collection<Tuple> tuples) {
+        for (Tuple tuple : tuples) {
+            ArityGroup group = this.group(tuple.size());
+            group.lock.readLock().lock();
+            try {
+                Partition partition = group.partition(Partition.typeOf(tuple));
+                synchronized (partition) {
+                    partition.tuples.add(tuple);
                 }
+            } finally {
+                group.lock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Partitions pouvant contenir des tuples correspondant au motif.
+     * L'appelant détient le verrou de l'arité.
+     *
+     * @param group    l'arité du motif.
+     * @param template le motif.
+     * @return les partitions à parcourir.
+     */
+    private List<Partition> partitionsOf(ArityGroup group, Tuple template) {
+        List<Partition> partitions = new ArrayList<>();
+        if (ArityGroup.isWide(template)) {
+            // Un type ne vise que ses sous-types ; une valeur, toutes les partitions
+            Object first = template.get(0);
+            for (Partition partition : group.partitions()) {
+                if (!(first instanceof Class) || partition.accepts((Class<?>) first))
+                    partitions.add(partition);
             }
         } else {
-            // Si c'est un évenement futur...
-            if (mode.equals(eventMode.READ)) {
-                // Si c'est une lecture : ajout de l'évenement dans le registre des lecteurs en
-                // attente...
-                this.readerEventList.add(new Event(template, callback));
-            } else {
-                // Si c'est un take : ajout de l'évenement dans le registre des consommateurs en
-                // attente
-                this.takerEventList.add(new Event(template, callback));
+            Partition partition = group.existingPartition(Partition.typeOf(template));
+            if (partition != null)
+                partitions.add(partition);
+        }
+        return partitions;
+    }
+
+    /**
+     * Cherche, et retire éventuellement, le premier tuple correspondant au
+     * motif. L'appelant détient le verrou de l'arité.
+     *
+     * @param group   l'arité du motif.
+     * @param matcher le motif compilé.
+     * @param remove  vrai pour retirer le tuple trouvé.
+     * @return le tuple trouvé, null si aucun.
+     */
+    private Tuple find(ArityGroup group, TemplateMatcher matcher, boolean remove) {
+        for (Partition partition : this.partitionsOf(group, matcher.template())) {
+            synchronized (partition) {
+                Tuple tuple = remove ? partition.tuples.remove(matcher) : partition.tuples.find(matcher);
+                if (tuple != null) {
+                    if (remove)
+                        this.store.taken(partition, tuple);
+                    return tuple;
+                }
             }
         }
+        return null;
+    }
+
+    /**
+     * @return une image de chaque partition de l'espace partagé.
+     */
+    public List<PartitionImage> images() {
+        this.awaitLoaded();
+        this.store.prepareAll();
+        List<PartitionImage> images = new ArrayList<>();
+        for (Map.Entry<Integer, ArityGroup> arity : this.sharedSpace.entrySet()) {
+            ArityGroup group = arity.getValue();
+            group.lock.readLock().lock();
+            try {
+                for (Partition partition : group.partitions()) {
+                    synchronized (partition) {
+                        images.add(new PartitionImage(arity.getKey(), partition.getType(),
+                                partition.lastSeq, partition.tuples.toList()));
+                    }
+                }
+            } finally {
+                group.lock.readLock().unlock();
+            }
+        }
+        return images;
+    }
+
+    /**
+     * Dernier numéro d'enregistrement appliqué à l'espace, sans attendre la
+     * fin d'un chargement : celui des sauvegardes en cours de chargement est
+     * relevé dans leurs en-têtes.
+     *
+     * @return le plus grand numéro d'enregistrement des partitions.
+     */
+    long lastSeq() {
+        long seq = this.loadingSeq;
+        for (ArityGroup group : this.sharedSpace.values()) {
+            group.lock.readLock().lock();
+            try {
+                for (Partition partition : group.partitions()) {
+                    synchronized (partition) {
+                        seq = Math.max(seq, partition.lastSeq);
+                    }
+                }
+            } finally {
+                group.lock.readLock().unlock();
+            }
+        }
+        return seq;
+    }
+
+    /**
+     * @return vrai si un chargement est en cours (voir {@link #loadAsync}).
+     */
+    boolean loading() {
+        return this.loads.get() > 0;
+    }
+
+    /**
+     * @return une copie de tous les tuples de l'espace partagé.
+     */
+    List<Tuple> snapshot() {
+        this.awaitLoaded();
+        this.store.prepareAll();
+        List<Tuple> tuples = new ArrayList<>();
+        for (ArityGroup group : this.sharedSpace.values()) {
+            group.lock.readLock().lock();
+            try {
+                for (Partition partition : group.partitions()) {
+                    synchronized (partition) {
+                        tuples.addAll(partition.tuples.toList());
+                    }
+                }
+            } finally {
+                group.lock.readLock().unlock();
+            }
+        }
+        return tuples;
+    }
+
+    /**
+     * Passe une copie de tous les tuples à une action, sans qu'aucune
+     * modification de l'espace ne puisse avoir lieu avant la fin de
+     * l'action : toutes les arités sont verrouillées en écriture, et aucune
+     * ne peut être créée pendant ce temps. L'action ne doit pas accéder à
+     * l'espace.
+     *
+     * @param action l'action, par exemple la réécriture du stockage.
+     */
+    void exclusiveSnapshot(Consumer<List<Tuple>> action) {
+        this.awaitLoaded();
+        this.store.prepareAll();
+        synchronized (this.creation) {
+            List<ArityGroup> groups = new ArrayList<>(this.sharedSpace.values());
+            List<ArityGroup> locked = new ArrayList<>(groups.size());
+            try {
+                List<Tuple> tuples = new ArrayList<>();
+                for (ArityGroup group : groups) {
+                    group.lock.writeLock().lock();
+                    locked.add(group);
+                    for (Partition partition : group.partitions()) {
+                        synchronized (partition) {
+                            tuples.addAll(partition.tuples.toList());
+                        }
+                    }
+                }
+                action.accept(tuples);
+            } finally {
+                for (ArityGroup group : locked) {
+                    group.lock.writeLock().unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return les mesures de l'activité de l'espace, mises à jour en continu.
+     */
+    public LindaMetrics metrics() {
+        return this.metrics;
+    }
+
+    /**
+     * @return le nombre d'appels de callbacks en attente dans le dispatcher.
+     */
+    public int pendingCallbacks() {
+        return this.dispatcher.pending();
+    }
+
+    /**
+     * Nombre de tuples présents, par signature.
+     *
+     * @return pour chaque arité, le nombre de tuples par type du premier
+     *         champ.
+     */
+    public Map<Integer, Map<Class<?>, Integer>> tupleCounts() {
+        this.awaitLoaded();
+        this.store.prepareAll();
+        Map<Integer, Map<Class<?>, Integer>> counts = new TreeMap<>();
+        for (Map.Entry<Integer, ArityGroup> arity : this.sharedSpace.entrySet()) {
+            Map<Class<?>, Integer> types = new HashMap<>();
+            for (Partition partition : arity.getValue().partitions()) {
+                synchronized (partition) {
+                    if (partition.tuples.size() > 0)
+                        types.put(partition.getType(), partition.tuples.size());
+                }
+            }
+            if (!types.isEmpty())
+                counts.put(arity.getKey(), types);
+        }
+        return counts;
+    }
+
+    /**
+     * @return le nombre de lecteurs en attente, toutes signatures confondues.
+     */
+    public int waitingReaders() {
+        return this.waiters(false);
+    }
+
+    /**
+     * @return le nombre de consommateurs en attente, toutes signatures
+     *         confondues.
+     */
+    public int waitingTakers() {
+        return this.waiters(true);
+    }
+
+    private int waiters(boolean takers) {
+        int count = 0;
+        for (ArityGroup group : this.sharedSpace.values()) {
+            List<Partition> partitions = new ArrayList<>(group.partitions());
+            partitions.add(group.wide);
+            for (Partition partition : partitions) {
+                synchronized (partition) {
+                    count += (takers ? partition.takers : partition.readers).size();
+                }
+            }
+        }
+        return count;
     }
 
     /**
@@ -292,33 +1350,200 @@ public class CentralizedLinda implements Linda {
      * @param filepath Chemin du fichier de sauvegarde.
      */
     public void save(String filepath) {
-        try {
-            FileOutputStream file_output = new FileOutputStream(filepath);
-            ObjectOutputStream object_output = new ObjectOutputStream(file_output);
-            object_output.writeObject(this.sharedSpace);
-            object_output.close();
-            file_output.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+        synchronized (this.saveLock) {
+            try {
+                OperationLog.writeSnapshot(filepath, this.images());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
     }
 
     /**
-     * Charge le fichier de tuple spécifié en paramètre dans l'espace partagé.
+     * Charge le fichier de tuple spécifié en paramètre dans l'espace partagé,
+     * puis rejoue les segments de journal qui l'accompagnent.
      * 
      * @param filepath Chemin vers le fichier à charger.
      */
     public void load(String filepath) {
+        try {
+            this.loadAsync(filepath).join();
+        } catch (CompletionException e) {
+            e.getCause().printStackTrace();
+        }
+    }
+
+    /**
+     * Charge le fichier de tuple spécifié en paramètre dans l'espace partagé
+     * en tâche de fond, puis rejoue les segments de journal qui
+     * l'accompagnent.
+     *
+     * Les segments de l'instantané sont décodés en parallèle, sur un fil
+     * par processeur, et les arités sont chargées l'une après l'autre, les
+     * plus petites d'abord. L'espace reste utilisable pendant ce temps : une
+     * opération ne porte que sur une arité et n'attend que la fin du
+     * chargement de celle-ci, sauf les parcours de tout l'espace
+     * ({@link #tupleCounts()}, sauvegardes) qui attendent la fin du
+     * chargement.
+     *
+     * @param filepath Chemin vers le fichier à charger.
+     * @return Le chargement, terminé une fois toutes les arités chargées.
+     */
+    public CompletableFuture<Void> loadAsync(String filepath) {
         if (!Files.exists(Paths.get(filepath)))
             throw new IOError(new RuntimeException("Le fichier spécifié est introuvable"));
+        List<OperationLog.Segment> segments;
+        List<OperationLog.Record> records;
         try {
-            FileInputStream file_input = new FileInputStream(filepath);
-            ObjectInputStream object_input = new ObjectInputStream(file_input);
-            this.sharedSpace = (List<Tuple>) object_input.readObject();
-            object_input.close();
-            file_input.close();
+            segments = OperationLog.readSegments(filepath);
+            records = OperationLog.readRecords(filepath);
         } catch (IOException | ClassNotFoundException e) {
             e.printStackTrace();
+            return CompletableFuture.completedFuture(null);
+        }
+        // Segments et enregistrements du journal, par arité
+        Map<Integer, List<OperationLog.Segment>> bySize = new TreeMap<>();
+        for (OperationLog.Segment segment : segments) {
+            bySize.computeIfAbsent(segment.arity, k -> new ArrayList<>()).add(segment);
+        }
+        Map<Integer, List<OperationLog.Record>> recordsBySize = new HashMap<>();
+        for (OperationLog.Record record : records) {
+            recordsBySize.computeIfAbsent(record.tuple.size(), k -> new ArrayList<>()).add(record);
+            bySize.computeIfAbsent(record.tuple.size(), k -> new ArrayList<>());
+        }
+        // Le journal peut s'ouvrir avant la fin du chargement : il lui faut
+        // dès maintenant le dernier numéro d'enregistrement de la sauvegarde.
+        long lastSeq = this.loadingSeq;
+        for (OperationLog.Segment segment : segments) {
+            lastSeq = Math.max(lastSeq, segment.seq);
+        }
+        for (OperationLog.Record record : records) {
+            lastSeq = Math.max(lastSeq, record.seq);
+        }
+        this.loadingSeq = lastSeq;
+        Map<Integer, CountDownLatch> gates = new HashMap<>();
+        for (int size : bySize.keySet()) {
+            CountDownLatch gate = new CountDownLatch(1);
+            gates.put(size, gate);
+            this.loading.put(size, gate);
+        }
+        this.loads.incrementAndGet();
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService loaders = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+            Thread t = new Thread(r, "linda-load-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        List<CompletableFuture<Void>> arities = new ArrayList<>();
+        for (Map.Entry<Integer, List<OperationLog.Segment>> arity : bySize.entrySet()) {
+            int size = arity.getKey();
+            CompletableFuture<Void> prepared = CompletableFuture.runAsync(() -> this.store.prepare(size), loaders);
+            // Décodés en parallèle, les segments d'une partition lui sont
+            // ajoutés dans l'ordre du fichier : ses tuples gardent leur ordre.
+            // Les partitions d'une arité se remplissent en parallèle.
+            Map<Class<?>, CompletableFuture<Void>> partitions = new HashMap<>();
+            for (OperationLog.Segment segment : arity.getValue()) {
+                CompletableFuture<PartitionImage> image = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return segment.read();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }, loaders);
+                CompletableFuture<Void> previous = partitions.getOrDefault(segment.type, prepared);
+                partitions.put(segment.type, previous.thenCombine(image, (v, i) -> i).thenAccept(this::apply));
+            }
+            List<CompletableFuture<Void>> steps = new ArrayList<>(partitions.values());
+            steps.add(prepared);
+            CompletableFuture<Void> loaded = CompletableFuture.allOf(steps.toArray(new CompletableFuture<?>[0]));
+            List<OperationLog.Record> replayed = recordsBySize.getOrDefault(size, Collections.emptyList());
+            CountDownLatch gate = gates.get(size);
+            arities.add(loaded.thenRun(() -> replayed.forEach(this::replay)).whenComplete((v, e) -> {
+                gate.countDown();
+                this.loading.remove(size, gate);
+            }));
+        }
+        return CompletableFuture.allOf(arities.toArray(new CompletableFuture<?>[0]))
+                .whenComplete((v, e) -> {
+                    loaders.shutdown();
+                    this.loads.decrementAndGet();
+                })
+                // Le stockage doit repartir de l'état chargé
+                .thenRun(this.store::reset);
+    }
+
+    /**
+     * Ajoute à sa partition une partie de partition chargée.
+     *
+     * @param image la partie chargée.
+     */
+    private void apply(PartitionImage image) {
+        ArityGroup group = this.group(image.arity);
+        group.lock.readLock().lock();
+        try {
+            Partition partition = group.partition(image.type);
+            synchronized (partition) {
+                for (Tuple tuple : image.tuples) {
+                    partition.tuples.add(tuple);
+                }
+                partition.lastSeq = Math.max(partition.lastSeq, image.seq);
+            }
+        } finally {
+            group.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Remplace tout le contenu de l'espace par des images de partitions, par
+     * exemple celles d'un autre espace dont celui-ci est la réplique. Les
+     * enregistrements rejoués ensuite sont comparés aux numéros des images.
+     * Ne réveille ni les lecteurs en attente ni les abonnés.
+     *
+     * @param images les images, voir {@link #images()}.
+     */
+    public void restore(List<PartitionImage> images) {
+        this.awaitLoaded();
+        for (ArityGroup group : this.sharedSpace.values()) {
+            group.lock.writeLock().lock();
+            try {
+                for (Partition partition : group.partitions()) {
+                    synchronized (partition) {
+                        partition.tuples.clear();
+                        partition.lastSeq = 0;
+                    }
+                }
+            } finally {
+                group.lock.writeLock().unlock();
+            }
+        }
+        for (PartitionImage image : images) {
+            this.apply(image);
+        }
+    }
+
+    /**
+     * Rejoue un enregistrement du journal, s'il n'est pas déjà couvert par
+     * l'instantané de sa partition. Sert au chargement d'une sauvegarde et
+     * aux répliques ; ne réveille ni les lecteurs en attente ni les abonnés.
+     *
+     * @param record l'enregistrement.
+     */
+    public void replay(OperationLog.Record record) {
+        ArityGroup group = this.group(record.tuple.size());
+        group.lock.readLock().lock();
+        try {
+            Partition partition = group.partition(Partition.typeOf(record.tuple));
+            synchronized (partition) {
+                if (record.seq <= partition.lastSeq)
+                    return;
+                if (record.op == OperationLog.WRITE)
+                    partition.tuples.add(record.tuple);
+                else
+                    partition.tuples.removeEqual(record.tuple);
+                partition.lastSeq = record.seq;
+            }
+        } finally {
+            group.lock.readLock().unlock();
         }
     }
 
@@ -329,6 +1554,8 @@ public class CentralizedLinda implements Linda {
      */
     @Override
     public void debug(String prefix) {
-        System.out.println("Debug " + prefix + " : " + sharedSpace.toString());
+        System.out.println("Debug " + prefix + " : " + this.snapshot());
+        System.out.println("Debug " + prefix + " : " + this.waitingReaders() + " lecteurs, "
+                + this.waitingTakers() + " consommateurs en attente\n" + this.metrics);
     }
 }
@@ -0,0 +1,12 @@
+package linda.shm;
+
+import linda.Callback;
+
+/**
+ * Callback qui ne fait que passer la main, sans jamais bloquer : il est
+ * appelé directement par le fil qui le déclenche, sans passer par le
+ * {@link CallbackDispatcher}. Les callbacks déclenchés par une même écriture
+ * sont ainsi appelés dans l'ordre de leur déclenchement.
+ */
+public interface DirectCallback extends Callback {
+}
@@ -1,12 +1,20 @@
 package linda.shm;
 
 import linda.Callback;
+import linda.TemplateMatcher;
 import linda.Tuple;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Représente un évènement futur, read ou take. Associe un template à un
  * callback.
  *
+ * Un évènement en attente est soit déclenché par un écrivain, soit annulé
+ * par son auteur (délai dépassé, interruption) : {@link #fire()} et
+ * {@link #cancel()} se disputent l'évènement et un seul des deux l'emporte.
+ *
  * @author Nathan Chavas
  * @author Mohamed Moudjeb
  */
@@ -17,6 +25,27 @@ public class Event {
      */
     private Tuple motif;
     private Callback callback;
+    /** Le template compilé une fois pour toutes. */
+    private TemplateMatcher matcher;
+
+    private static final int WAITING = 0;
+    private static final int FIRED = 1;
+    private static final int CANCELLED = 2;
+    private final AtomicInteger state = new AtomicInteger(WAITING);
+
+    /** Ordre d'enregistrement des évènements, tous espaces confondus. */
+    private static final AtomicLong counter = new AtomicLong();
+    private final long seq = counter.incrementAndGet();
+
+    /* Chaînage dans le registre où l'évènement attend (voir WaiterRegistry). */
+    WaiterRegistry.Bucket bucket;
+    Event prev;
+    Event next;
+
+    /* Emplacement de l'évènement, pour l'en retirer s'il est annulé. */
+    ArityGroup group;
+    Partition partition;
+    WaiterRegistry registry;
 
     /**
      * Construit un Event avec un template et un callback.
@@ -28,6 +57,7 @@ public class Event {
     public Event(Tuple motif, Callback callback) {
         this.motif = motif;
         this.callback = callback;
+        this.matcher = TemplateMatcher.of(motif);
     }
 
     /**
@@ -38,7 +68,62 @@ public class Event {
      * @see Tuple
      */
     public boolean isMatching(Tuple tuple) {
-        return tuple.matches(this.motif);
+        return this.matcher.matches(tuple);
+    }
+
+    /**
+     * Déclenche l'évènement, s'il n'a pas été annulé.
+     *
+     * @return vrai si l'évènement doit être appelé.
+     */
+    public boolean fire() {
+        return this.state.compareAndSet(WAITING, FIRED);
+    }
+
+    /**
+     * @return vrai si l'évènement a été annulé.
+     */
+    public boolean isCancelled() {
+        return this.state.get() == CANCELLED;
+    }
+
+    /**
+     * @return le numéro d'ordre de l'évènement : un évènement plus ancien a
+     *         un numéro plus petit.
+     */
+    public long getSeq() {
+        return this.seq;
+    }
+
+    /**
+     * Annule l'évènement, s'il n'a pas déjà été déclenché.
+     *
+     * @return vrai si l'évènement est annulé ; faux s'il a été déclenché et
+     *         que son callback va être (ou a été) appelé.
+     */
+    public boolean cancel() {
+        return this.state.compareAndSet(WAITING, CANCELLED);
+    }
+
+    /**
+     * @return le template associé à l'évènement.
+     */
+    public Tuple getMotif() {
+        return this.motif;
+    }
+
+    /**
+     * @return le template compilé associé à l'évènement.
+     */
+    public TemplateMatcher getMatcher() {
+        return this.matcher;
+    }
+
+    /**
+     * @return le callback associé à l'évènement.
+     */
+    public Callback getCallback() {
+        return this.callback;
     }
 
     /**
@@ -0,0 +1,32 @@
+package linda.shm;
+
+import java.util.concurrent.CompletableFuture;
+import linda.Callback;
+import linda.Tuple;
+
+/**
+ * Callback qui complète une future : attente d'un take ou d'un read
+ * asynchrone, sans fil bloqué.
+ */
+final class FutureCallback implements Callback {
+
+    final CompletableFuture<Tuple> future = new CompletableFuture<>();
+    private final CentralizedLinda space;
+    private final boolean take;
+
+    /**
+     * @param space l'espace, auquel un tuple retiré pour une future déjà
+     *              annulée est rendu.
+     * @param take  vrai si l'attente retire le tuple.
+     */
+    FutureCallback(CentralizedLinda space, boolean take) {
+        this.space = space;
+        this.take = take;
+    }
+
+    public void call(Tuple t) {
+        // Future annulée pendant le déclenchement : personne ne recevra le tuple.
+        if (!this.future.complete(t) && this.take)
+            this.space.write(t);
+    }
+}
@@ -0,0 +1,199 @@
+package linda.shm;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Mesures de l'activité d'un espace partagé : nombre d'appels et latences de
+ * chaque opération, durée d'exécution des callbacks et temps d'attente du
+ * disque.
+ *
+ * Les compteurs sont des {@link LongAdder} : leur mise à jour ne prend aucun
+ * verrou et ne crée pas de contention entre les fils, si bien que les
+ * mesures peuvent rester actives en production. Leur lecture n'est pas
+ * atomique : une lecture concurrente d'écritures peut voir un compteur à
+ * jour et l'histogramme associé pas encore.
+ */
+public class LindaMetrics {
+
+    /** Opérations mesurées. */
+    public enum Operation {
+        WRITE, WRITE_ALL, READ, TAKE, TAKE_N, TRY_READ, TRY_TAKE, TRY_TAKE_N, READ_ALL, TAKE_ALL, EVENT_REGISTER
+    }
+
+    /**
+     * Histogramme de durées, en nanosecondes. Les durées sont rangées par
+     * puissance de deux : le paquet i reçoit les durées de [2^(i-1), 2^i[.
+     * Les quantiles sont donc approchés à un facteur deux près, ce qui
+     * suffit pour suivre l'évolution d'une latence.
+     */
+    public static final class Histogram {
+        private final LongAdder[] buckets = new LongAdder[64];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        Histogram() {
+            for (int i = 0; i < this.buckets.length; i++) {
+                this.buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Ajoute une durée à l'histogramme.
+         *
+         * @param nanos la durée en nanosecondes.
+         */
+        void record(long nanos) {
+            if (nanos < 0)
+                nanos = 0;
+            this.buckets[Math.min(63, 64 - Long.numberOfLeadingZeros(nanos))].increment();
+            this.count.increment();
+            this.sum.add(nanos);
+            this.max.accumulate(nanos);
+        }
+
+        /**
+         * @return le nombre de durées mesurées.
+         */
+        public long count() {
+            return this.count.sum();
+        }
+
+        /**
+         * @return la durée moyenne en nanosecondes, 0 si aucune mesure.
+         */
+        public double mean() {
+            long n = this.count.sum();
+            return n == 0 ? 0 : (double) this.sum.sum() / n;
+        }
+
+        /**
+         * @return la plus grande durée mesurée, en nanosecondes.
+         */
+        public long max() {
+            return this.max.get();
+        }
+
+        /**
+         * Renvoie un majorant du quantile demandé.
+         *
+         * @param q le quantile, entre 0 et 1 (0.99 pour le 99e centile).
+         * @return la borne supérieure du paquet contenant ce quantile, en
+         *         nanosecondes ; 0 si aucune mesure.
+         */
+        public long percentile(double q) {
+            long[] counts = new long[this.buckets.length];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = this.buckets[i].sum();
+                total += counts[i];
+            }
+            if (total == 0)
+                return 0;
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0)
+                    return Math.min(this.max(), i == 0 ? 0 : (1L << i) - 1);
+            }
+            return this.max();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("n=%d mean=%.0fns p50<=%dns p99<=%dns max=%dns",
+                    this.count(), this.mean(), this.percentile(0.5), this.percentile(0.99), this.max());
+        }
+    }
+
+    private final Map<Operation, Histogram> operations = new EnumMap<>(Operation.class);
+    private final Histogram callbacks = new Histogram();
+    private final Histogram persistence = new Histogram();
+    private final Histogram checkpoints = new Histogram();
+
+    LindaMetrics() {
+        for (Operation op : Operation.values()) {
+            this.operations.put(op, new Histogram());
+        }
+    }
+
+    /**
+     * Enregistre la fin d'une opération.
+     *
+     * @param op    l'opération.
+     * @param start l'instant du début de l'opération ({@link System#nanoTime()}).
+     */
+    void record(Operation op, long start) {
+        this.operations.get(op).record(System.nanoTime() - start);
+    }
+
+    void recordCallback(long start) {
+        this.callbacks.record(System.nanoTime() - start);
+    }
+
+    void recordPersistence(long start) {
+        this.persistence.record(System.nanoTime() - start);
+    }
+
+    void recordCheckpoint(long start) {
+        this.checkpoints.record(System.nanoTime() - start);
+    }
+
+    /**
+     * @param op l'opération.
+     * @return le nombre d'appels terminés de l'opération.
+     */
+    public long count(Operation op) {
+        return this.operations.get(op).count();
+    }
+
+    /**
+     * Latence d'une opération. Pour les opérations bloquantes (read, take),
+     * elle comprend l'attente d'un tuple correspondant.
+     *
+     * @param op l'opération.
+     * @return l'histogramme des latences de l'opération.
+     */
+    public Histogram latency(Operation op) {
+        return this.operations.get(op);
+    }
+
+    /**
+     * @return l'histogramme des durées d'exécution des callbacks appelés par
+     *         le dispatcher de l'espace.
+     */
+    public Histogram callbackTime() {
+        return this.callbacks;
+    }
+
+    /**
+     * @return l'histogramme des attentes du disque (fsync du journal) par
+     *         les opérations qui modifient l'espace.
+     */
+    public Histogram persistenceLatency() {
+        return this.persistence;
+    }
+
+    /**
+     * @return l'histogramme des durées des points de contrôle.
+     */
+    public Histogram checkpointTime() {
+        return this.checkpoints;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Operation, Histogram> op : this.operations.entrySet()) {
+            sb.append(op.getKey()).append(": ").append(op.getValue()).append('\n');
+        }
+        sb.append("CALLBACK: ").append(this.callbacks).append('\n');
+        sb.append("PERSISTENCE: ").append(this.persistence).append('\n');
+        sb.append("CHECKPOINT: ").append(this.checkpoints);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,24 @@
+package linda.shm;
+
+/**
+ * Observateur du journal d'un {@link LogStore} : reçoit chaque
+ * enregistrement, dans l'ordre des numéros, par exemple pour l'envoyer à
+ * des répliques.
+ */
+public interface LogListener {
+
+    /**
+     * Un enregistrement vient d'être ajouté au journal. Appelé sous le verrou
+     * du journal, dans l'ordre des numéros : doit rendre la main au plus vite.
+     *
+     * @param record l'enregistrement.
+     */
+    void appended(OperationLog.Record record);
+
+    /**
+     * Les modifications d'un appelant de {@link TupleStore#commit()} sont sur
+     * disque. Appelé hors de tout verrou, par cet appelant, qui peut y être
+     * retenu (réplication semi-synchrone).
+     */
+    void committed();
+}
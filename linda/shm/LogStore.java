@@ -0,0 +1,164 @@
+package linda.shm;
+
+import linda.Tuple;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Stockage par journal : chaque écriture ou retrait de tuple est ajouté au
+ * journal {@link OperationLog}, à côté du fichier de sauvegarde ;
+ * l'instantané complet de l'espace n'est réécrit qu'à chaque point de
+ * contrôle, tous les {@link #CHECKPOINT_INTERVAL} enregistrements.
+ *
+ * Le journal est ouvert à la première modification de l'espace. Les tuples
+ * d'une sauvegarde existante ne sont restaurés que par
+ * {@link CentralizedLinda#load(String)}.
+ */
+public class LogStore implements TupleStore {
+
+    /** Nombre d'enregistrements du journal entre deux points de contrôle. */
+    public static final int CHECKPOINT_INTERVAL = 10000;
+
+    private final String filepath;
+    private CentralizedLinda space;
+    /** Sérialise les points de contrôle. */
+    private final Object saveLock = new Object();
+    /** Journal des modifications, ouvert à la première modification. */
+    private volatile OperationLog log = null;
+    /** Fil des points de contrôle, pour ne pas les faire payer aux écrivains. */
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "linda-checkpoint");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean compacting = new AtomicBoolean(false);
+    private volatile LogListener listener = null;
+
+    /**
+     * @param filepath Chemin du fichier de sauvegarde ; les segments de
+     *                 journal sont rangés à côté.
+     */
+    public LogStore(String filepath) {
+        this.filepath = filepath;
+    }
+
+    /**
+     * Confie les enregistrements du journal à un observateur, par exemple pour
+     * les répliquer. À appeler avant que l'espace ne soit modifié.
+     *
+     * @param listener l'observateur, null pour aucun.
+     */
+    public void setListener(LogListener listener) {
+        this.listener = listener;
+        OperationLog log = this.log;
+        if (log != null)
+            log.setListener(listener);
+    }
+
+    @Override
+    public void attach(CentralizedLinda space) {
+        this.space = space;
+    }
+
+    /**
+     * Ouvre le journal à la première modification. Le journal repart alors
+     * de l'état courant de l'espace, comme le faisait la première
+     * sauvegarde. Pendant un chargement, le journal s'ouvre sans attendre les
+     * arités pas encore chargées : le point de contrôle qui termine le
+     * chargement (voir {@link #reset()}) tient lieu de première sauvegarde.
+     */
+    @Override
+    public void open() {
+        if (this.log != null)
+            return;
+        synchronized (this.saveLock) {
+            if (this.log == null) {
+                OperationLog log = new OperationLog(this.filepath, this.space.lastSeq());
+                log.setListener(this.listener);
+                this.log = log;
+                if (!this.space.loading())
+                    this.checkpoint();
+            }
+        }
+    }
+
+    @Override
+    public void written(Partition partition, Tuple tuple) {
+        partition.lastSeq = this.log.append(OperationLog.WRITE, tuple);
+    }
+
+    @Override
+    public void taken(Partition partition, Tuple tuple) {
+        partition.lastSeq = this.log.append(OperationLog.TAKE, tuple);
+    }
+
+    /**
+     * Attend que les modifications journalisées soient sur disque, et lance
+     * un point de contrôle en tâche de fond si le journal a assez grossi.
+     */
+    @Override
+    public void commit() {
+        OperationLog log = this.log;
+        long start = System.nanoTime();
+        log.sync();
+        this.space.metrics().recordPersistence(start);
+        LogListener listener = this.listener;
+        if (listener != null)
+            listener.committed();
+        if (log.recordsSinceCheckpoint() >= CHECKPOINT_INTERVAL && this.compacting.compareAndSet(false, true)) {
+            this.compactor.execute(() -> {
+                try {
+                    this.checkpoint();
+                } finally {
+                    this.compacting.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Le journal déjà ouvert repart de l'état chargé. Sous saveLock : un
+     * journal ouvert pendant le chargement y est forcément vu.
+     */
+    @Override
+    public void reset() {
+        synchronized (this.saveLock) {
+            if (this.log != null)
+                this.checkpoint();
+        }
+    }
+
+    @Override
+    public void prepare(int arity) {
+        // Rien à restaurer : voir CentralizedLinda.load
+    }
+
+    @Override
+    public void prepareAll() {
+    }
+
+    /**
+     * Point de contrôle : écrit un instantané de l'espace et efface les
+     * segments de journal qu'il couvre.
+     * Les partitions sont figées l'une après l'autre, sans arrêter les
+     * écritures : chaque image retient le dernier enregistrement appliqué à
+     * sa partition, et le rechargement ignore les enregistrements qu'elle
+     * contient déjà.
+     */
+    private void checkpoint() {
+        synchronized (this.saveLock) {
+            long start = System.nanoTime();
+            int generation = this.log.rotate();
+            try {
+                OperationLog.writeSnapshot(this.filepath, this.space.images());
+                this.log.deleteSegmentsBefore(generation);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            this.space.metrics().recordCheckpoint(start);
+        }
+    }
+}
@@ -0,0 +1,534 @@
+package linda.shm;
+
+import linda.Tuple;
+
+import java.io.IOError;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * Stockage des tuples dans un fichier projeté en mémoire.
+ *
+ * Le fichier est une suite d'enregistrements, un par tuple écrit : un octet
+ * d'état, l'arité du tuple, la longueur de sa forme codée par
+ * {@link linda.TupleCodec}, une somme de contrôle CRC32 de l'arité, de la
+ * longueur et de la forme codée, puis cette forme. Une écriture ajoute son
+ * enregistrement en fin de fichier et un retrait ne change que l'octet
+ * d'état du sien : aucune modification ne réécrit les autres tuples.
+ *
+ * Avant une mise sur disque, le système écrit les pages modifiées dans un
+ * ordre quelconque : après un arrêt brutal, un enregistrement peut être
+ * marqué vivant sans que sa forme codée soit sur disque. Un enregistrement
+ * dont la somme ne correspond pas est ignoré à la restauration de son arité
+ * et compté comme retiré ; un en-tête dont la longueur déborde de sa
+ * tranche marque la fin du fichier, et ce qui le suit est effacé.
+ *
+ * Le fichier est projeté par tranches de {@link #CHUNK_SIZE} octets, qu'un
+ * enregistrement ne chevauche jamais. Au démarrage, seuls les en-têtes sont
+ * parcourus : les tuples d'une arité ne sont décodés qu'au premier
+ * accès de l'espace à cette arité.
+ *
+ * Les enregistrements des tuples retirés sont éliminés en réécrivant le
+ * fichier dès qu'ils occupent plus de place que les tuples présents. La
+ * réécriture se fait sur un fil à part : les écrivains ne l'attendent que
+ * pendant la recopie en mémoire, et leurs mises sur disque jusqu'au
+ * remplacement du fichier.
+ */
+public class MappedTupleStore implements TupleStore {
+
+    /** Taille des tranches projetées, et donc taille maximale d'un tuple codé. */
+    public static final int CHUNK_SIZE = 1 << 24;
+
+    /** États d'un enregistrement. */
+    private static final byte END = 0, LIVE = 1, DEAD = 2, PAD = 3;
+    /** État, arité, longueur et somme de contrôle. */
+    private static final int HEADER = 13;
+
+    private final Path path;
+    private CentralizedLinda space;
+    private FileChannel channel;
+    /** Tranches projetées du fichier. */
+    private final List<MappedByteBuffer> chunks = new ArrayList<>();
+    /** Tranches modifiées depuis la dernière mise sur disque. */
+    private final BitSet dirty = new BitSet();
+    /** Position du prochain enregistrement. */
+    private long end = 0;
+    private long liveBytes = 0;
+    private long deadBytes = 0;
+    /** Nombre de modifications, et nombre de celles qui sont sur disque. */
+    private long modifications = 0;
+    private long forced = 0;
+    /** Sérialise les mises sur disque et les réécritures du fichier. */
+    private final Object forceLock = new Object();
+    /** Positions des enregistrements des tuples présents dans l'espace. */
+    private final Map<Tuple, ArrayDeque<Long>> handles = new HashMap<>();
+    /** Positions des enregistrements pas encore restaurés, par arité. */
+    private final ConcurrentMap<Integer, List<Long>> unloaded = new ConcurrentHashMap<>();
+    /** Vrai tant qu'une arité reste à restaurer. */
+    private volatile boolean pending = false;
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "linda-compaction");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean compacting = new AtomicBoolean(false);
+
+    /**
+     * @param filepath Chemin du fichier, créé s'il n'existe pas.
+     */
+    public MappedTupleStore(String filepath) {
+        this.path = Paths.get(filepath);
+    }
+
+    /**
+     * Ouvre le fichier et relève la position des tuples présents, sans les
+     * décoder.
+     */
+    @Override
+    public synchronized void attach(CentralizedLinda space) {
+        this.space = space;
+        try {
+            this.channel = FileChannel.open(this.path, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long size = this.channel.size();
+            for (long start = 0; start < size; start += CHUNK_SIZE) {
+                this.chunk(start);
+            }
+            this.scan(size);
+            this.clearTail(size);
+        } catch (IOException e) {
+            throw new IOError(e);
+        }
+        this.pending = !this.unloaded.isEmpty();
+    }
+
+    /**
+     * Parcourt les en-têtes des enregistrements.
+     */
+    private void scan(long size) throws IOException {
+        long pos = 0;
+        while (pos < size) {
+            int off = (int) (pos % CHUNK_SIZE);
+            if (off + HEADER > CHUNK_SIZE) {
+                pos = this.nextChunk(pos);
+                continue;
+            }
+            MappedByteBuffer chunk = this.chunk(pos);
+            byte status = chunk.get(off);
+            if (status != LIVE && status != DEAD && status != PAD)
+                break;
+            if (status == PAD) {
+                pos = this.nextChunk(pos);
+                continue;
+            }
+            int payload = chunk.getInt(off + 5);
+            if (payload < 0 || off + HEADER + payload > CHUNK_SIZE)
+                break;
+            int length = HEADER + payload;
+            if (status == LIVE) {
+                this.unloaded.computeIfAbsent(chunk.getInt(off + 1), k -> new ArrayList<>()).add(pos);
+                this.liveBytes += length;
+            } else {
+                this.deadBytes += length;
+            }
+            pos += length;
+        }
+        this.end = pos;
+    }
+
+    /**
+     * Efface ce qui suit le dernier enregistrement : les restes d'un arrêt
+     * brutal, que les enregistrements suivants ne recouvriraient qu'en
+     * partie, ne doivent pas passer pour des enregistrements.
+     */
+    private void clearTail(long size) {
+        for (long pos = this.end; pos < size; pos++) {
+            MappedByteBuffer chunk = this.chunk(pos);
+            int off = (int) (pos % CHUNK_SIZE);
+            if (chunk.get(off) != 0) {
+                chunk.put(off, (byte) 0);
+                this.dirty.set((int) (pos / CHUNK_SIZE));
+            }
+        }
+    }
+
+    @Override
+    public void open() {
+        // Le fichier est ouvert dès le rattachement
+    }
+
+    @Override
+    public void written(Partition partition, Tuple tuple) {
+        byte[] payload = this.encode(tuple);
+        synchronized (this) {
+            long pos = this.append(tuple.size(), payload);
+            this.handles.computeIfAbsent(tuple, k -> new ArrayDeque<>()).add(pos);
+            this.liveBytes += HEADER + payload.length;
+            this.modifications++;
+        }
+    }
+
+    @Override
+    public synchronized void taken(Partition partition, Tuple tuple) {
+        ArrayDeque<Long> positions = this.handles.get(tuple);
+        if (positions == null)
+            return;
+        long pos = positions.poll();
+        if (positions.isEmpty())
+            this.handles.remove(tuple);
+        MappedByteBuffer chunk = this.chunk(pos);
+        int off = (int) (pos % CHUNK_SIZE);
+        chunk.put(off, DEAD);
+        this.dirty.set((int) (pos / CHUNK_SIZE));
+        int length = HEADER + chunk.getInt(off + 5);
+        this.liveBytes -= length;
+        this.deadBytes += length;
+        this.modifications++;
+    }
+
+    /**
+     * Met sur disque les tranches modifiées. Les appels concurrents se
+     * partagent une même mise sur disque : celui qui la fait couvre les
+     * modifications des autres. Lance au besoin la réécriture du fichier.
+     */
+    @Override
+    public void commit() {
+        long start = System.nanoTime();
+        long target;
+        synchronized (this) {
+            target = this.modifications;
+        }
+        synchronized (this.forceLock) {
+            if (this.forced < target) {
+                List<MappedByteBuffer> buffers = new ArrayList<>();
+                long upTo;
+                synchronized (this) {
+                    upTo = this.modifications;
+                    for (int i = this.dirty.nextSetBit(0); i >= 0; i = this.dirty.nextSetBit(i + 1)) {
+                        buffers.add(this.chunks.get(i));
+                    }
+                    this.dirty.clear();
+                }
+                for (MappedByteBuffer buffer : buffers) {
+                    buffer.force();
+                }
+                this.forced = upTo;
+            }
+            this.space.metrics().recordPersistence(start);
+        }
+        boolean compact;
+        synchronized (this) {
+            compact = this.wasteful();
+        }
+        if (compact && this.compacting.compareAndSet(false, true)) {
+            this.compactor.execute(() -> {
+                try {
+                    this.compact();
+                } finally {
+                    this.compacting.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Vrai si les tuples retirés occupent plus de place que les présents.
+     * L'appelant détient le moniteur du stockage.
+     */
+    private boolean wasteful() {
+        return this.deadBytes > this.liveBytes && this.deadBytes >= CHUNK_SIZE;
+    }
+
+    /**
+     * Réécrit le fichier à partir des tuples de l'espace. Les modifications
+     * de l'espace attendent la fin de la réécriture : aucune ne peut se
+     * perdre dans l'ancien fichier.
+     */
+    @Override
+    public void reset() {
+        synchronized (this.forceLock) {
+            this.space.exclusiveSnapshot(this::rewrite);
+        }
+    }
+
+    /**
+     * Remplace le fichier par un fichier ne contenant que les tuples donnés.
+     * L'appelant détient forceLock.
+     */
+    private synchronized void rewrite(List<Tuple> tuples) {
+        this.switchFile();
+        this.handles.clear();
+        this.liveBytes = 0;
+        this.deadBytes = 0;
+        for (Tuple tuple : tuples) {
+            byte[] payload = this.encode(tuple);
+            long pos = this.append(tuple.size(), payload);
+            this.handles.computeIfAbsent(tuple, k -> new ArrayDeque<>()).add(pos);
+            this.liveBytes += HEADER + payload.length;
+        }
+        this.dirty.clear();
+        this.install(new ArrayList<>(this.chunks), this.modifications);
+    }
+
+    /**
+     * Décode les tuples de l'arité et les restaure dans l'espace. Les
+     * autres appels pour la même arité attendent la fin de la restauration.
+     * Les enregistrements altérés sont marqués retirés.
+     */
+    @Override
+    public void prepare(int arity) {
+        if (!this.pending)
+            return;
+        List<Long> positions = this.unloaded.get(arity);
+        if (positions == null)
+            return;
+        synchronized (positions) {
+            if (positions.isEmpty())
+                return;
+            List<Tuple> tuples = new ArrayList<>(positions.size());
+            synchronized (this) {
+                for (long pos : positions) {
+                    Tuple tuple = this.decode(pos);
+                    if (tuple == null) {
+                        this.discard(pos);
+                        continue;
+                    }
+                    tuples.add(tuple);
+                    this.handles.computeIfAbsent(tuple, k -> new ArrayDeque<>()).add(pos);
+                }
+                positions.clear();
+            }
+            this.space.restore(tuples);
+            this.unloaded.remove(arity, positions);
+            this.pending = !this.unloaded.isEmpty();
+        }
+    }
+
+    /**
+     * Marque retiré un enregistrement altéré. L'appelant détient le moniteur
+     * du stockage.
+     */
+    private void discard(long pos) {
+        MappedByteBuffer chunk = this.chunk(pos);
+        int off = (int) (pos % CHUNK_SIZE);
+        chunk.put(off, DEAD);
+        this.dirty.set((int) (pos / CHUNK_SIZE));
+        int length = HEADER + chunk.getInt(off + 5);
+        this.liveBytes -= length;
+        this.deadBytes += length;
+        this.modifications++;
+    }
+
+    @Override
+    public void prepareAll() {
+        if (!this.pending)
+            return;
+        for (Integer arity : new ArrayList<>(this.unloaded.keySet())) {
+            this.prepare(arity);
+        }
+    }
+
+    /**
+     * Élimine les enregistrements des tuples retirés en recopiant les
+     * autres dans un nouveau fichier, qui remplace l'ancien. Les
+     * enregistrements pas encore restaurés sont recopiés tels quels.
+     *
+     * Seule la recopie se fait sous le moniteur du stockage : les écritures
+     * et retraits suivants vont au nouveau fichier pendant qu'il est mis sur
+     * disque. Les mises sur disque attendent qu'il ait remplacé l'ancien,
+     * sans quoi un arrêt brutal perdrait ce qu'elles couvrent.
+     */
+    private void compact() {
+        synchronized (this.forceLock) {
+            List<MappedByteBuffer> copied;
+            long upTo;
+            synchronized (this) {
+                if (!this.wasteful())
+                    return;
+                List<MappedByteBuffer> old = this.switchFile();
+                for (ArrayDeque<Long> positions : this.handles.values()) {
+                    for (int i = positions.size(); i > 0; i--) {
+                        positions.add(this.copy(old, positions.poll()));
+                    }
+                }
+                for (List<Long> positions : this.unloaded.values()) {
+                    positions.replaceAll(pos -> this.copy(old, pos));
+                }
+                this.deadBytes = 0;
+                // Les tranches modifiées ensuite le restent pour la prochaine mise sur disque
+                this.dirty.clear();
+                copied = new ArrayList<>(this.chunks);
+                upTo = this.modifications;
+            }
+            this.install(copied, upTo);
+        }
+    }
+
+    /**
+     * Recopie un enregistrement de l'ancien fichier en fin du nouveau.
+     *
+     * @return sa position dans le nouveau fichier.
+     */
+    private long copy(List<MappedByteBuffer> old, long pos) {
+        MappedByteBuffer chunk = old.get((int) (pos / CHUNK_SIZE));
+        int off = (int) (pos % CHUNK_SIZE);
+        byte[] payload = new byte[chunk.getInt(off + 5)];
+        chunk.get(off + HEADER, payload);
+        return this.append(chunk.getInt(off + 1), payload, chunk.getInt(off + 9));
+    }
+
+    /**
+     * Commence un nouveau fichier, à côté de l'ancien.
+     *
+     * @return les tranches de l'ancien fichier.
+     */
+    private List<MappedByteBuffer> switchFile() {
+        List<MappedByteBuffer> old = new ArrayList<>(this.chunks);
+        try {
+            this.channel.close();
+            this.channel = FileChannel.open(this.rewritePath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.chunks.clear();
+        this.dirty.clear();
+        this.end = 0;
+        return old;
+    }
+
+    /**
+     * Met le nouveau fichier sur disque et le substitue à l'ancien. Les
+     * anciennes tranches ne sont libérées qu'avec leur MappedByteBuffer.
+     * L'appelant détient forceLock.
+     *
+     * @param copied les tranches du nouveau fichier.
+     * @param upTo   le nombre de modifications qu'elles contiennent.
+     */
+    private void install(List<MappedByteBuffer> copied, long upTo) {
+        for (MappedByteBuffer chunk : copied) {
+            chunk.force();
+        }
+        this.forced = upTo;
+        try {
+            Files.move(this.rewritePath(), this.path,
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Path rewritePath() {
+        return this.path.resolveSibling(this.path.getFileName() + ".rewrite");
+    }
+
+    /**
+     * Ajoute un enregistrement vivant en fin de fichier. L'appelant détient
+     * le moniteur du stockage.
+     *
+     * @return la position de l'enregistrement.
+     */
+    private long append(int arity, byte[] payload) {
+        return this.append(arity, payload, checksum(arity, payload));
+    }
+
+    private long append(int arity, byte[] payload, int checksum) {
+        int length = HEADER + payload.length;
+        if (length > CHUNK_SIZE)
+            throw new IllegalArgumentException("Tuple trop grand pour le stockage : " + payload.length + " octets");
+        int off = (int) (this.end % CHUNK_SIZE);
+        if (off + length > CHUNK_SIZE) {
+            // Le reste de la tranche est abandonné
+            if (off + HEADER <= CHUNK_SIZE) {
+                this.chunk(this.end).put(off, PAD);
+                this.dirty.set((int) (this.end / CHUNK_SIZE));
+            }
+            this.end = this.nextChunk(this.end);
+            off = 0;
+        }
+        long pos = this.end;
+        MappedByteBuffer chunk = this.chunk(pos);
+        chunk.putInt(off + 1, arity);
+        chunk.putInt(off + 5, payload.length);
+        chunk.putInt(off + 9, checksum);
+        chunk.put(off + HEADER, payload);
+        chunk.put(off, LIVE);
+        this.dirty.set((int) (pos / CHUNK_SIZE));
+        this.end = pos + length;
+        return pos;
+    }
+
+    /**
+     * Renvoie la tranche contenant une position, en projetant au besoin
+     * les tranches qui la précèdent.
+     */
+    private MappedByteBuffer chunk(long pos) {
+        int index = (int) (pos / CHUNK_SIZE);
+        try {
+            while (this.chunks.size() <= index) {
+                this.chunks.add(this.channel.map(FileChannel.MapMode.READ_WRITE,
+                        (long) this.chunks.size() * CHUNK_SIZE, CHUNK_SIZE));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this.chunks.get(index);
+    }
+
+    private long nextChunk(long pos) {
+        return (pos / CHUNK_SIZE + 1) * CHUNK_SIZE;
+    }
+
+    private byte[] encode(Tuple tuple) {
+        try {
+            return OperationLog.serialize(tuple);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static int checksum(int arity, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(8).putInt(arity).putInt(payload.length).array());
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @return le tuple de l'enregistrement, null si sa somme de contrôle ne
+     *         correspond pas.
+     */
+    private Tuple decode(long pos) {
+        MappedByteBuffer chunk = this.chunk(pos);
+        int off = (int) (pos % CHUNK_SIZE);
+        byte[] payload = new byte[chunk.getInt(off + 5)];
+        chunk.get(off + HEADER, payload);
+        if (checksum(chunk.getInt(off + 1), payload) != chunk.getInt(off + 9))
+            return null;
+        try {
+            return OperationLog.deserialize(payload).freeze();
+        } catch (IOException | ClassNotFoundException e) {
+            throw new IOError(e);
+        }
+    }
+}
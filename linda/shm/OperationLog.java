@@ -0,0 +1,562 @@
+package linda.shm;
+
+import linda.Tuple;
+import linda.TupleCodec;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Journal des modifications de l'espace partagé.
+ *
+ * Chaque écriture ou retrait de tuple est ajouté en fin de journal sous la
+ * forme d'un enregistrement numéroté ; seul cet enregistrement est écrit sur
+ * disque, et non plus tout l'espace. Les enregistrements sont écrits et
+ * forcés sur disque par lots par un fil dédié (« group commit ») : un appel à
+ * {@link #sync()} attend le lot qui contient ses enregistrements, et tous
+ * les appelants d'un même lot partagent le même fsync.
+ *
+ * Le journal est découpé en segments <code>base.log.N</code>. Un point de
+ * contrôle ({@link #rotate()} puis {@link #writeSnapshot}) fige l'état de
+ * l'espace dans le fichier <code>base</code> et permet d'effacer les
+ * segments qui le précèdent. L'instantané est lui-même découpé en segments
+ * d'au plus {@link #SEGMENT_TUPLES} tuples d'une même partition, précédés de
+ * leur arité et de leur taille, qui peuvent être lus en parallèle.
+ *
+ * Format d'un enregistrement : numéro (long), opération (octet), taille
+ * (int), puis le tuple codé par {@link TupleCodec}. Les enregistrements et
+ * les instantanés écrits par sérialisation Java, avant ce codage, sont
+ * toujours relus.
+ */
+public class OperationLog {
+
+    /** Enregistrement d'une écriture de tuple. */
+    public static final byte WRITE = 0;
+    /** Enregistrement d'un retrait de tuple. */
+    public static final byte TAKE = 1;
+
+    /**
+     * Enregistrement du journal.
+     */
+    public static final class Record {
+        public final long seq;
+        public final byte op;
+        public final Tuple tuple;
+
+        public Record(long seq, byte op, Tuple tuple) {
+            this.seq = seq;
+            this.op = op;
+            this.tuple = tuple;
+        }
+    }
+
+    /** En-tête des instantanés découpés en segments (« LSP2 »). */
+    private static final int SNAPSHOT_MAGIC = 0x4C535032;
+    /** En-tête des instantanés d'un seul bloc (« LSP1 »), encore relus. */
+    private static final int SNAPSHOT_MAGIC_V1 = 0x4C535031;
+    /** Nombre maximal de tuples d'un segment d'instantané. */
+    public static final int SEGMENT_TUPLES = 8192;
+    /** Taille lue en tête de segment pour connaître le type de sa partition. */
+    private static final int TYPE_PEEK = 1024;
+
+    /**
+     * Segment d'un instantané : une partie des tuples d'une partition, qui
+     * peut être lue indépendamment des autres segments.
+     */
+    public static final class Segment {
+        /** Arité des tuples du segment. */
+        public final int arity;
+        /** Type du premier champ des tuples du segment. */
+        public final Class<?> type;
+        /** Dernier enregistrement de journal appliqué à la partition. */
+        public final long seq;
+        private final Path path;
+        private final long offset;
+        private final int length;
+        /** Contenu déjà lu, pour les instantanés d'un ancien format. */
+        private final PartitionImage image;
+
+        private Segment(int arity, Class<?> type, long seq, Path path, long offset, int length, PartitionImage image) {
+            this.arity = arity;
+            this.type = type;
+            this.seq = seq;
+            this.path = path;
+            this.offset = offset;
+            this.length = length;
+            this.image = image;
+        }
+
+        /**
+         * Lit le segment. Plusieurs segments peuvent être lus en même temps.
+         *
+         * @return la partie de partition contenue dans le segment.
+         */
+        public PartitionImage read() throws IOException {
+            if (this.image != null)
+                return this.image;
+            ByteBuffer bytes = ByteBuffer.allocate(this.length);
+            try (FileChannel channel = FileChannel.open(this.path, StandardOpenOption.READ)) {
+                while (bytes.hasRemaining()) {
+                    if (channel.read(bytes, this.offset + bytes.position()) < 0)
+                        throw new EOFException("Segment d'instantané tronqué");
+                }
+            }
+            return readImage(this.arity, new DataInputStream(new ByteArrayInputStream(bytes.array())));
+        }
+    }
+
+    /** Marque de changement de segment dans la file d'attente. */
+    private static final Object ROTATE = new Object();
+
+    private final String basepath;
+    /** Enregistrements (ou marques de rotation) en attente d'écriture. */
+    private List<Object> pending = new ArrayList<>();
+    private long nextSeq;
+    private long durableSeq;
+    /** Segment recevant les prochains enregistrements. */
+    private int generation;
+    private int sinceCheckpoint = 0;
+    private IOException failure = null;
+    private volatile LogListener listener = null;
+
+    /**
+     * Ouvre un nouveau segment de journal, après les segments existants.
+     *
+     * @param basepath chemin du fichier de sauvegarde.
+     * @param lastSeq  dernier numéro d'enregistrement déjà utilisé.
+     */
+    public OperationLog(String basepath, long lastSeq) {
+        this.basepath = basepath;
+        this.nextSeq = lastSeq + 1;
+        this.durableSeq = lastSeq;
+        int last = 0;
+        for (int gen : segments(basepath).keySet()) {
+            last = Math.max(last, gen);
+        }
+        this.generation = last + 1;
+        final int first = this.generation;
+        Thread flusher = new Thread(() -> this.flushLoop(first), "linda-log");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Ajoute un enregistrement au journal. L'enregistrement n'est pas encore
+     * sur disque : voir {@link #sync()}.
+     *
+     * @param op    {@link #WRITE} ou {@link #TAKE}.
+     * @param tuple le tuple écrit ou retiré.
+     * @return le numéro de l'enregistrement.
+     */
+    public synchronized long append(byte op, Tuple tuple) {
+        long seq = this.nextSeq++;
+        Record record = new Record(seq, op, tuple);
+        this.pending.add(record);
+        LogListener listener = this.listener;
+        if (listener != null)
+            listener.appended(record);
+        this.sinceCheckpoint++;
+        this.notifyAll();
+        return seq;
+    }
+
+    /**
+     * Confie les enregistrements ajoutés désormais à un observateur.
+     *
+     * @param listener l'observateur, null pour aucun.
+     */
+    void setListener(LogListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Attend que tous les enregistrements ajoutés jusqu'ici soient sur disque.
+     */
+    public synchronized void sync() {
+        long target = this.nextSeq - 1;
+        boolean interrupted = false;
+        while (this.durableSeq < target && this.failure == null) {
+            try {
+                this.wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        if (this.failure != null)
+            throw new UncheckedIOException(this.failure);
+    }
+
+    /**
+     * @return le nombre d'enregistrements ajoutés depuis le dernier point de contrôle.
+     */
+    public synchronized int recordsSinceCheckpoint() {
+        return this.sinceCheckpoint;
+    }
+
+    /**
+     * Termine le segment courant : les enregistrements ajoutés ensuite iront
+     * dans un nouveau segment.
+     *
+     * @return le numéro du nouveau segment ; les segments précédents seront
+     *         couverts par le prochain instantané.
+     */
+    public synchronized int rotate() {
+        this.pending.add(ROTATE);
+        this.sinceCheckpoint = 0;
+        this.notifyAll();
+        return ++this.generation;
+    }
+
+    /**
+     * Efface les segments antérieurs à un segment donné, une fois qu'un
+     * instantané les couvre.
+     *
+     * @param generation le premier segment à conserver.
+     */
+    public void deleteSegmentsBefore(int generation) {
+        for (Path segment : segments(this.basepath).headMap(generation).values()) {
+            try {
+                Files.deleteIfExists(segment);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Boucle du fil d'écriture : écrit les enregistrements en attente par
+     * lots, un fsync par lot.
+     *
+     * @param generation le premier segment à écrire.
+     */
+    private void flushLoop(int generation) {
+        FileChannel channel;
+        try {
+            channel = this.open(generation);
+            while (true) {
+                List<Object> batch;
+                synchronized (this) {
+                    while (this.pending.isEmpty()) {
+                        this.wait();
+                    }
+                    batch = this.pending;
+                    this.pending = new ArrayList<>();
+                }
+                long last = -1;
+                ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(buf);
+                for (Object o : batch) {
+                    if (o == ROTATE) {
+                        writeAndForce(channel, buf);
+                        channel.close();
+                        channel = this.open(++generation);
+                        continue;
+                    }
+                    Record record = (Record) o;
+                    byte[] bytes = serialize(record.tuple);
+                    out.writeLong(record.seq);
+                    out.writeByte(record.op);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                    last = record.seq;
+                }
+                writeAndForce(channel, buf);
+                synchronized (this) {
+                    if (last > this.durableSeq)
+                        this.durableSeq = last;
+                    this.notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            synchronized (this) {
+                this.failure = e;
+                this.notifyAll();
+            }
+        } catch (InterruptedException e) {
+            // Fin du fil d'écriture
+        }
+    }
+
+    private static void writeAndForce(FileChannel channel, ByteArrayOutputStream buf) throws IOException {
+        if (buf.size() == 0)
+            return;
+        ByteBuffer bytes = ByteBuffer.wrap(buf.toByteArray());
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        channel.force(false);
+        buf.reset();
+    }
+
+    private FileChannel open(int generation) throws IOException {
+        return FileChannel.open(segmentPath(this.basepath, generation),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Écrit un instantané de l'espace partagé, de manière atomique : le
+     * fichier est d'abord écrit à côté, puis renommé.
+     *
+     * @param basepath chemin du fichier de sauvegarde.
+     * @param images   les partitions de l'espace.
+     */
+    public static void writeSnapshot(String basepath, List<PartitionImage> images) throws IOException {
+        Path target = Paths.get(basepath);
+        Path tmp = Paths.get(basepath + ".tmp");
+        try (FileOutputStream file_output = new FileOutputStream(tmp.toFile());
+             DataOutputStream data_output = new DataOutputStream(new BufferedOutputStream(file_output))) {
+            data_output.writeInt(SNAPSHOT_MAGIC);
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream body_output = new DataOutputStream(body);
+            for (PartitionImage image : images) {
+                // Une partition vide a aussi son segment, qui retient son numéro d'enregistrement
+                int from = 0;
+                do {
+                    int to = Math.min(image.tuples.size(), from + SEGMENT_TUPLES);
+                    body.reset();
+                    TupleCodec.writeValue(image.type, body_output);
+                    body_output.writeLong(image.seq);
+                    body_output.writeInt(to - from);
+                    for (Tuple tuple : image.tuples.subList(from, to)) {
+                        TupleCodec.write(tuple, body_output);
+                    }
+                    data_output.writeInt(image.arity);
+                    data_output.writeInt(body.size());
+                    body.writeTo(data_output);
+                    from = to;
+                } while (from < image.tuples.size());
+            }
+            data_output.flush();
+            file_output.getFD().sync();
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Lit un instantané de l'espace partagé, segment après segment (voir
+     * {@link #readSegments} pour une lecture en parallèle).
+     *
+     * @param basepath chemin du fichier de sauvegarde.
+     * @return les partitions de l'espace, en autant de parties que de
+     *         segments.
+     */
+    public static List<PartitionImage> readSnapshot(String basepath) throws IOException, ClassNotFoundException {
+        List<PartitionImage> images = new ArrayList<>();
+        for (Segment segment : readSegments(basepath)) {
+            images.add(segment.read());
+        }
+        return images;
+    }
+
+    /**
+     * Relève les segments d'un instantané sans les lire : seuls leurs
+     * en-têtes sont parcourus. Les instantanés des formats précédents, qui
+     * ne sont pas découpés, sont lus en entier ; les anciennes sauvegardes
+     * contenant une simple liste de tuples sont aussi acceptées.
+     *
+     * @param basepath chemin du fichier de sauvegarde.
+     * @return les segments, dans l'ordre du fichier.
+     */
+    public static List<Segment> readSegments(String basepath) throws IOException, ClassNotFoundException {
+        Path path = Paths.get(basepath);
+        List<Segment> segments = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            readFully(channel, magic, 0);
+            if (magic.getInt(0) == SNAPSHOT_MAGIC) {
+                ByteBuffer header = ByteBuffer.allocate(8);
+                long pos = 4;
+                long size = channel.size();
+                while (pos < size) {
+                    header.clear();
+                    readFully(channel, header, pos);
+                    int arity = header.getInt(0);
+                    int length = header.getInt(4);
+                    // Le type de la partition et son numéro d'enregistrement ouvrent le segment
+                    ByteBuffer start = ByteBuffer.allocate(Math.min(length, TYPE_PEEK));
+                    readFully(channel, start, pos + 8);
+                    DataInputStream peek = new DataInputStream(new ByteArrayInputStream(start.array()));
+                    Class<?> type = (Class<?>) TupleCodec.readValue(peek);
+                    Segment segment;
+                    try {
+                        segment = new Segment(arity, type, peek.readLong(), path, pos + 8, length, null);
+                    } catch (EOFException e) {
+                        // Nom de type trop long pour l'en-tête lu : le segment est lu en entier
+                        PartitionImage image = new Segment(arity, type, 0, path, pos + 8, length, null).read();
+                        segment = new Segment(arity, type, image.seq, path, pos + 8, length, image);
+                    }
+                    segments.add(segment);
+                    pos += 8 + length;
+                }
+                return segments;
+            }
+        } catch (EOFException e) {
+            // Fichier trop court pour être segmenté : voir les anciens formats
+        }
+        for (PartitionImage image : readWholeSnapshot(basepath)) {
+            segments.add(new Segment(image.arity, image.type, image.seq, path, 0, 0, image));
+        }
+        return segments;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, pos + buf.position()) < 0)
+                throw new EOFException();
+        }
+    }
+
+    /**
+     * Lit un instantané d'un format précédent, d'un seul bloc.
+     */
+    private static List<PartitionImage> readWholeSnapshot(String basepath) throws IOException, ClassNotFoundException {
+        List<?> content;
+        try (BufferedInputStream input = new BufferedInputStream(new FileInputStream(basepath))) {
+            input.mark(2);
+            int b0 = input.read();
+            int b1 = input.read();
+            input.reset();
+            if (!isJavaSerialization(b0, b1))
+                return readImages(new DataInputStream(input));
+            try (ObjectInputStream object_input = new TupleInputStream(input)) {
+                content = (List<?>) object_input.readObject();
+            }
+        }
+        List<PartitionImage> images = new ArrayList<>(content.size());
+        for (Object o : content) {
+            if (o instanceof Tuple) {
+                Tuple tuple = (Tuple) o;
+                images.add(new PartitionImage(tuple.size(), Partition.typeOf(tuple), 0, Collections.singletonList(tuple)));
+            } else {
+                images.add((PartitionImage) o);
+            }
+        }
+        return images;
+    }
+
+    private static List<PartitionImage> readImages(DataInputStream in) throws IOException {
+        if (in.readInt() != SNAPSHOT_MAGIC_V1)
+            throw new StreamCorruptedException("Instantané de l'espace partagé invalide");
+        int count = in.readInt();
+        List<PartitionImage> images = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            images.add(readImage(in.readInt(), in));
+        }
+        return images;
+    }
+
+    private static PartitionImage readImage(int arity, DataInputStream in) throws IOException {
+        Class<?> type = (Class<?>) TupleCodec.readValue(in);
+        long seq = in.readLong();
+        int size = in.readInt();
+        List<Tuple> tuples = new ArrayList<>(size);
+        for (int k = 0; k < size; k++) {
+            tuples.add(TupleCodec.read(in).freeze());
+        }
+        return new PartitionImage(arity, type, seq, tuples);
+    }
+
+    /**
+     * Lit les enregistrements de tous les segments de journal, dans l'ordre.
+     * Un enregistrement tronqué en fin de segment (arrêt brutal pendant son
+     * écriture) est ignoré.
+     *
+     * @param basepath chemin du fichier de sauvegarde.
+     * @return les enregistrements.
+     */
+    public static List<Record> readRecords(String basepath) throws IOException, ClassNotFoundException {
+        List<Record> records = new ArrayList<>();
+        for (Path segment : segments(basepath).values()) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(segment)))) {
+                while (true) {
+                    long seq;
+                    byte op;
+                    byte[] bytes;
+                    try {
+                        seq = in.readLong();
+                        op = in.readByte();
+                        bytes = new byte[in.readInt()];
+                        in.readFully(bytes);
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    records.add(new Record(seq, op, deserialize(bytes)));
+                }
+            }
+        }
+        return records;
+    }
+
+    private static Path segmentPath(String basepath, int generation) {
+        return Paths.get(basepath + ".log." + generation);
+    }
+
+    /** Segments existants, par numéro. */
+    private static TreeMap<Integer, Path> segments(String basepath) {
+        TreeMap<Integer, Path> segments = new TreeMap<>();
+        Path base = Paths.get(basepath).toAbsolutePath();
+        String prefix = base.getFileName() + ".log.";
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(base.getParent(), prefix + "*")) {
+            for (Path segment : dir) {
+                try {
+                    segments.put(Integer.parseInt(segment.getFileName().toString().substring(prefix.length())), segment);
+                } catch (NumberFormatException e) {
+                    // ignore : ce n'est pas un segment
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return segments;
+    }
+
+    static byte[] serialize(Tuple tuple) throws IOException {
+        return TupleCodec.encode(tuple);
+    }
+
+    static Tuple deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        if (isJavaSerialization(bytes[0], bytes.length > 1 ? bytes[1] : 0)) {
+            ObjectInputStream in = new TupleInputStream(new ByteArrayInputStream(bytes));
+            return (Tuple) in.readObject();
+        }
+        return TupleCodec.decode(bytes).freeze();
+    }
+
+    /**
+     * Reconnaît l'en-tête d'un flux de sérialisation Java. Un tuple codé ne
+     * commence ainsi que s'il a plus de dix mille composants.
+     */
+    private static boolean isJavaSerialization(int b0, int b1) {
+        return (byte) b0 == (byte) (ObjectStreamConstants.STREAM_MAGIC >> 8)
+                && (byte) b1 == (byte) ObjectStreamConstants.STREAM_MAGIC;
+    }
+
+    /**
+     * Flux de lecture acceptant aussi les tuples sérialisés sous leur ancienne
+     * forme de liste chaînée (voir {@link linda.legacy.Tuple}).
+     */
+    private static final class TupleInputStream extends ObjectInputStream {
+
+        TupleInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            if (desc.getName().equals(Tuple.class.getName())
+                    && desc.getSerialVersionUID() == ObjectStreamClass.lookup(linda.legacy.Tuple.class).getSerialVersionUID())
+                return linda.legacy.Tuple.class;
+            return super.resolveClass(desc);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package linda.shm;
+
+import linda.Tuple;
+
+/**
+ * Partition de l'espace partagé : les tuples d'une même signature (arité et
+ * type du premier champ) et les évènements en attente de tuples de cette
+ * signature.
+ * Chaque partition est protégée par son propre moniteur, si bien que deux
+ * opérations portant sur des signatures différentes ne se gênent pas.
+ */
+public class Partition {
+
+    /** Type du premier champ des tuples de la partition. */
+    private final Class<?> type;
+    /** Tuples de la partition. */
+    final TupleIndex tuples = new TupleIndex();
+    /** Lecteurs en attente. */
+    final WaiterRegistry readers = new WaiterRegistry();
+    /** Consommateurs en attente. */
+    final WaiterRegistry takers = new WaiterRegistry();
+    /** Dernier enregistrement de journal appliqué à la partition. */
+    long lastSeq = 0;
+
+    /**
+     * Construit une partition vide.
+     *
+     * @param type le type du premier champ des tuples de la partition.
+     */
+    public Partition(Class<?> type) {
+        this.type = type;
+    }
+
+    /**
+     * @return le type du premier champ des tuples de la partition.
+     */
+    public Class<?> getType() {
+        return this.type;
+    }
+
+    /**
+     * Indique si un motif dont le premier champ est un type peut correspondre
+     * à des tuples de cette partition : leur premier champ doit être une
+     * instance de ce type, ou bien un type qui en dérive.
+     *
+     * @param wildcard le type en tête du motif.
+     * @return vrai si la partition doit être parcourue pour ce motif.
+     */
+    public boolean accepts(Class<?> wildcard) {
+        return this.type == Class.class || wildcard.isAssignableFrom(this.type);
+    }
+
+    /**
+     * Type servant de clé de partition pour le premier champ d'un tuple (ou
+     * d'un motif dont le premier champ est concret).
+     *
+     * @param tuple le tuple, ou le motif.
+     * @return la clé de partition.
+     */
+    public static Class<?> typeOf(Tuple tuple) {
+        if (tuple.isEmpty())
+            return Void.class;
+        Object first = tuple.get(0);
+        // Les tuples de tête nulle ont leur partition : Void ne désigne
+        // sinon que l'arité 0.
+        if (first == null)
+            return Void.class;
+        // Tous les sous-tuples sont rangés ensemble, les sous-motifs aussi.
+        if (first instanceof Tuple)
+            return Tuple.class;
+        return first.getClass();
+    }
+}
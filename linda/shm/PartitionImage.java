@@ -0,0 +1,33 @@
+package linda.shm;
+
+import linda.Tuple;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Contenu d'une partition figé dans un instantané de l'espace partagé.
+ * Le numéro du dernier enregistrement de journal appliqué à la partition
+ * permet, au rechargement, de ne rejouer que les enregistrements
+ * postérieurs à l'instantané.
+ */
+public class PartitionImage implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Arité des tuples de la partition. */
+    public final int arity;
+    /** Type du premier champ des tuples de la partition. */
+    public final Class<?> type;
+    /** Dernier enregistrement de journal appliqué à la partition. */
+    public final long seq;
+    /** Tuples de la partition. */
+    public final List<Tuple> tuples;
+
+    public PartitionImage(int arity, Class<?> type, long seq, List<Tuple> tuples) {
+        this.arity = arity;
+        this.type = type;
+        this.seq = seq;
+        this.tuples = tuples;
+    }
+}
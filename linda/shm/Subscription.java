@@ -0,0 +1,16 @@
+package linda.shm;
+
+/**
+ * Évènement enregistré par {@link CentralizedLinda#subscribe}, qui peut
+ * être abandonné tant qu'il n'a pas été déclenché.
+ */
+public interface Subscription {
+
+    /**
+     * Abandonne l'évènement.
+     *
+     * @return vrai si l'évènement a été abandonné ; faux s'il a déjà été
+     *         déclenché, auquel cas son callback est ou sera appelé.
+     */
+    boolean cancel();
+}
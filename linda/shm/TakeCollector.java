@@ -0,0 +1,164 @@
+package linda.shm;
+
+import linda.Tuple;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Retrait asynchrone de n tuples : les tuples déjà présents, puis les
+ * suivants attendus un à un, sans fil bloqué ni empilement d'étapes.
+ * Annuler la future rendue retire l'attente en cours et rend les tuples
+ * déjà retirés ; un échec les rend aussi.
+ */
+public final class TakeCollector {
+
+    private final int n;
+    private final Supplier<CompletableFuture<Tuple>> take;
+    private final Consumer<List<Tuple>> putBack;
+    private final CompletableFuture<Collection<Tuple>> result = new CompletableFuture<>();
+    private final List<Tuple> tuples;
+    /** Attente en cours, null entre deux. */
+    private CompletableFuture<Tuple> pending = null;
+    /** Vrai une fois le résultat décidé : les tuples arrivés ensuite sont rendus. */
+    private boolean finished = false;
+
+    private TakeCollector(int n, Supplier<CompletableFuture<Tuple>> take, Consumer<List<Tuple>> putBack) {
+        this.n = n;
+        this.take = take;
+        this.putBack = putBack;
+        this.tuples = new ArrayList<>(n);
+    }
+
+    /**
+     * @param present la future des tuples déjà présents, au plus n.
+     * @param n       le nombre de tuples à retirer.
+     * @param take    lance le retrait asynchrone d'un tuple ; annuler sa
+     *                future doit retirer l'attente.
+     * @param putBack rend des tuples retirés à l'espace.
+     * @return la future des n tuples retirés.
+     */
+    public static CompletableFuture<Collection<Tuple>> collect(CompletableFuture<? extends Collection<Tuple>> present,
+            int n, Supplier<CompletableFuture<Tuple>> take, Consumer<List<Tuple>> putBack) {
+        TakeCollector collector = new TakeCollector(n, take, putBack);
+        collector.result.whenComplete((r, e) -> {
+            if (collector.result.isCancelled())
+                collector.cancelled();
+        });
+        present.whenComplete((found, e) -> {
+            if (e != null) {
+                collector.fail(e);
+                return;
+            }
+            List<Tuple> back = null;
+            synchronized (collector) {
+                if (collector.finished)
+                    back = new ArrayList<>(found);
+                else
+                    collector.tuples.addAll(found);
+            }
+            if (back == null)
+                collector.next();
+            else if (!back.isEmpty())
+                putBack.accept(back);
+        });
+        return collector.result;
+    }
+
+    /**
+     * Attend les tuples manquants : les retraits déjà aboutis sont traités
+     * sur place, le premier qui attend reprend la boucle à son arrivée.
+     */
+    private void next() {
+        while (true) {
+            boolean complete;
+            synchronized (this) {
+                if (this.finished)
+                    return;
+                complete = this.tuples.size() >= this.n;
+                this.finished = complete;
+            }
+            // Une annulation concurrente rend elle-même les tuples
+            if (complete) {
+                this.result.complete(this.tuples);
+                return;
+            }
+            CompletableFuture<Tuple> wait = this.take.get();
+            boolean cancelled;
+            synchronized (this) {
+                this.pending = wait;
+                cancelled = this.finished;
+            }
+            // Annulation survenue pendant le lancement du retrait
+            if (cancelled)
+                wait.cancel(false);
+            if (!wait.isDone()) {
+                wait.whenComplete((t, e) -> {
+                    if (e != null)
+                        this.fail(e);
+                    else if (this.accept(t))
+                        this.next();
+                });
+                return;
+            }
+            try {
+                if (!this.accept(wait.join()))
+                    return;
+            } catch (RuntimeException e) {
+                this.fail(e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return faux si le résultat est déjà décidé : le tuple est alors rendu.
+     */
+    private boolean accept(Tuple tuple) {
+        synchronized (this) {
+            this.pending = null;
+            if (!this.finished) {
+                this.tuples.add(tuple);
+                return true;
+            }
+        }
+        this.putBack.accept(List.of(tuple));
+        return false;
+    }
+
+    private void fail(Throwable e) {
+        List<Tuple> back;
+        synchronized (this) {
+            if (this.finished)
+                return;
+            this.finished = true;
+            back = new ArrayList<>(this.tuples);
+            this.tuples.clear();
+        }
+        if (!back.isEmpty())
+            this.putBack.accept(back);
+        this.result.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+    }
+
+    private void cancelled() {
+        CompletableFuture<Tuple> wait;
+        List<Tuple> back;
+        synchronized (this) {
+            this.finished = true;
+            wait = this.pending;
+            this.pending = null;
+            back = new ArrayList<>(this.tuples);
+            this.tuples.clear();
+        }
+        // Un tuple arrivé malgré l'annulation est rendu par accept
+        if (wait != null)
+            wait.cancel(false);
+        if (!back.isEmpty())
+            this.putBack.accept(back);
+    }
+}
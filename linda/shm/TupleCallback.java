@@ -2,6 +2,7 @@ package linda.shm;
 
 import java.io.Serializable;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import linda.Callback;
 import linda.Tuple;
 
@@ -11,15 +12,36 @@ public class TupleCallback implements Callback, Serializable {
     private Tuple t;
 
     public void call(Tuple t) {
-        this.sem.release();
         this.t = t;
+        this.sem.release();
     }
 
+    /**
+     * Attend l'appel du callback, même si le fil est interrompu.
+     */
     public void waitCallback() {
+        this.sem.acquireUninterruptibly();
+    }
+
+    /**
+     * Attend l'appel du callback pendant un temps limité.
+     *
+     * @param nanos le délai d'attente en nanosecondes, négatif pour attendre
+     *              sans limite.
+     * @return vrai si le callback a été appelé ; faux si le délai est dépassé
+     *         ou si le fil a été interrompu, auquel cas son statut
+     *         d'interruption est rétabli.
+     */
+    public boolean waitCallback(long nanos) {
         try {
-            this.sem.acquire();
+            if (nanos < 0) {
+                this.sem.acquire();
+                return true;
+            }
+            return this.sem.tryAcquire(nanos, TimeUnit.NANOSECONDS);
         } catch (InterruptedException e) {
-            e.printStackTrace();
+            Thread.currentThread().interrupt();
+            return false;
         }
     }
 
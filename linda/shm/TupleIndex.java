@@ -0,0 +1,314 @@
+package linda.shm;
+
+import linda.TemplateMatcher;
+import linda.Tuple;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Index des tuples de l'espace partagé.
+ * Les tuples sont rangés par arité, puis, pour chaque position, par valeur du
+ * champ à cette position. Un motif ne parcourt alors que le plus petit des
+ * paquets correspondant à ses champs concrets ; seuls les motifs composés
+ * uniquement de jokers (types ou sous-motifs) parcourent tous les tuples de
+ * leur arité.
+ *
+ * Seules les positions où un motif a déjà eu un champ concret sont
+ * indexées : l'index d'une position est construit au premier motif qui
+ * s'en sert, puis tenu à jour. Un tuple ne coûte ainsi une entrée de paquet
+ * que pour les positions servant de clé, en pratique le premier champ.
+ *
+ * Cette classe n'est pas synchronisée : l'appelant doit en garantir l'accès
+ * exclusif.
+ */
+public class TupleIndex {
+
+    /**
+     * Un tuple stocké. L'identité de l'entrée distingue deux tuples égaux
+     * écrits deux fois, là où {@link Tuple#equals(Object)} les confondrait.
+     */
+    private static final class Entry {
+        private final Tuple tuple;
+
+        private Entry(Tuple tuple) {
+            this.tuple = tuple;
+        }
+    }
+
+    /**
+     * Tuples d'une même arité.
+     */
+    private static final class ArityIndex {
+        /** Tous les tuples de cette arité, dans l'ordre d'écriture. */
+        private final LinkedHashSet<Entry> all = new LinkedHashSet<>();
+        /**
+         * Pour chaque position, les tuples classés par valeur du champ ;
+         * null pour une position qui n'a pas encore servi de clé.
+         */
+        private final List<Map<Object, LinkedHashSet<Entry>>> positions;
+
+        private ArityIndex(int arity, BitSet keys) {
+            this.positions = new ArrayList<>(arity);
+            for (int i = 0; i < arity; i++) {
+                this.positions.add(keys != null && keys.get(i) ? new HashMap<>() : null);
+            }
+        }
+    }
+
+    private final Map<Integer, ArityIndex> arities = new HashMap<>();
+    /**
+     * Positions ayant servi de clé, par arité : elles restent indexées
+     * quand l'arité se vide puis se remplit.
+     */
+    private final Map<Integer, BitSet> keys = new HashMap<>();
+    private int size = 0;
+
+    /**
+     * Vide l'index.
+     */
+    public void clear() {
+        this.arities.clear();
+        this.size = 0;
+    }
+
+    /**
+     * Ajoute un tuple à l'index.
+     *
+     * @param tuple le tuple ajouté.
+     */
+    public void add(Tuple tuple) {
+        ArityIndex arity = this.arities.computeIfAbsent(tuple.size(), n -> new ArityIndex(n, this.keys.get(n)));
+        Entry entry = new Entry(tuple);
+        arity.all.add(entry);
+        for (int position = 0; position < tuple.size(); position++) {
+            Map<Object, LinkedHashSet<Entry>> values = arity.positions.get(position);
+            if (values != null)
+                values.computeIfAbsent(tuple.get(position), k -> new LinkedHashSet<>()).add(entry);
+        }
+        this.size++;
+    }
+
+    /**
+     * Renvoie le premier tuple correspondant au motif, sans le retirer.
+     *
+     * @param matcher le motif recherché, compilé.
+     * @return le tuple trouvé, null si aucun ne correspond.
+     */
+    public Tuple find(TemplateMatcher matcher) {
+        Entry entry = this.findEntry(matcher);
+        return entry == null ? null : entry.tuple;
+    }
+
+    /**
+     * Retire et renvoie le premier tuple correspondant au motif.
+     *
+     * @param matcher le motif recherché, compilé.
+     * @return le tuple retiré, null si aucun ne correspond.
+     */
+    public Tuple remove(TemplateMatcher matcher) {
+        Entry entry = this.findEntry(matcher);
+        if (entry == null)
+            return null;
+        this.removeEntry(this.arities.get(entry.tuple.size()), entry);
+        return entry.tuple;
+    }
+
+    /**
+     * Retire les premiers tuples correspondant au motif, en un seul parcours
+     * des candidats.
+     *
+     * @param matcher le motif recherché, compilé.
+     * @param limit   le nombre maximal de tuples à retirer.
+     * @return les tuples retirés, dans l'ordre d'écriture.
+     */
+    public List<Tuple> removeAll(TemplateMatcher matcher, int limit) {
+        List<Entry> found = new ArrayList<>();
+        for (Entry entry : this.candidates(matcher.template(), true)) {
+            if (found.size() >= limit)
+                break;
+            if (matcher.matches(entry.tuple))
+                found.add(entry);
+        }
+        if (found.isEmpty())
+            return Collections.emptyList();
+        // Retrait après le parcours : les candidats sont l'un des ensembles modifiés.
+        ArityIndex arity = this.arities.get(matcher.template().size());
+        List<Tuple> removed = new ArrayList<>(found.size());
+        for (Entry entry : found) {
+            this.removeEntry(arity, entry);
+            removed.add(entry.tuple);
+        }
+        return removed;
+    }
+
+    /**
+     * Retire un tuple égal à celui donné. Contrairement à
+     * {@link #remove(TemplateMatcher)}, les types contenus dans le tuple sont comparés
+     * comme des valeurs et non comme des jokers.
+     *
+     * @param tuple le tuple à retirer.
+     * @return vrai si un tuple égal a été retiré.
+     */
+    public boolean removeEqual(Tuple tuple) {
+        ArityIndex arity = this.arities.get(tuple.size());
+        if (arity == null)
+            return false;
+        for (Entry entry : this.candidates(tuple, false)) {
+            if (entry.tuple.equals(tuple)) {
+                this.removeEntry(arity, entry);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Renvoie tous les tuples correspondant au motif, sans les retirer.
+     *
+     * @param matcher le motif recherché, compilé.
+     * @return les tuples trouvés, dans l'ordre d'écriture.
+     */
+    public List<Tuple> findAll(TemplateMatcher matcher) {
+        List<Tuple> found = new ArrayList<>();
+        for (Entry entry : this.candidates(matcher.template(), true)) {
+            if (matcher.matches(entry.tuple))
+                found.add(entry.tuple);
+        }
+        return found;
+    }
+
+    /**
+     * Copie les références des tuples pouvant correspondre au motif, sans
+     * les tester : la copie est faite sous le verrou de l'appelant, le test
+     * peut se faire après, puisque les tuples stockés sont gelés.
+     *
+     * @param template le motif recherché.
+     * @return les tuples candidats, dans l'ordre d'écriture.
+     */
+    public Tuple[] candidatesOf(Tuple template) {
+        Collection<Entry> candidates = this.candidates(template, true);
+        Tuple[] tuples = new Tuple[candidates.size()];
+        int i = 0;
+        for (Entry entry : candidates) {
+            tuples[i++] = entry.tuple;
+        }
+        return tuples;
+    }
+
+    /**
+     * @return le nombre de tuples indexés.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return tous les tuples indexés.
+     */
+    public List<Tuple> toList() {
+        List<Tuple> list = new ArrayList<>(this.size);
+        for (ArityIndex arity : this.arities.values()) {
+            for (Entry entry : arity.all) {
+                list.add(entry.tuple);
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public String toString() {
+        return this.toList().toString();
+    }
+
+    private Entry findEntry(TemplateMatcher matcher) {
+        for (Entry entry : this.candidates(matcher.template(), true)) {
+            if (matcher.matches(entry.tuple))
+                return entry;
+        }
+        return null;
+    }
+
+    /**
+     * Choisit les tuples candidats pour un motif : le plus petit paquet parmi
+     * ceux des champs concrets du motif, ou tous les tuples de l'arité si le
+     * motif ne contient que des jokers.
+     *
+     * @param learn vrai si les positions concrètes du motif deviennent des
+     *              clés ; sinon (tuple d'un retrait rejoué), seules les clés
+     *              existantes servent, et à défaut la première position
+     *              concrète.
+     */
+    private Collection<Entry> candidates(Tuple template, boolean learn) {
+        ArityIndex arity = this.arities.get(template.size());
+        if (arity == null)
+            return Collections.emptySet();
+        Collection<Entry> best = arity.all;
+        int first = -1;
+        boolean keyed = false;
+        for (int position = 0; position < template.size(); position++) {
+            Serializable component = template.get(position);
+            if (isConcrete(component)) {
+                if (first < 0)
+                    first = position;
+                if (!learn && arity.positions.get(position) == null)
+                    continue;
+                keyed = true;
+                LinkedHashSet<Entry> bucket = this.indexed(arity, template.size(), position).get(component);
+                // Aucun tuple n'a cette valeur à cette position : rien ne peut correspondre.
+                if (bucket == null)
+                    return Collections.emptySet();
+                if (bucket.size() < best.size())
+                    best = bucket;
+            }
+        }
+        if (!keyed && first >= 0) {
+            LinkedHashSet<Entry> bucket = this.indexed(arity, template.size(), first).get(template.get(first));
+            return bucket == null ? Collections.emptySet() : bucket;
+        }
+        return best;
+    }
+
+    /**
+     * Renvoie l'index d'une position, en le construisant au premier motif
+     * qui s'en sert comme clé.
+     */
+    private Map<Object, LinkedHashSet<Entry>> indexed(ArityIndex arity, int size, int position) {
+        Map<Object, LinkedHashSet<Entry>> values = arity.positions.get(position);
+        if (values == null) {
+            values = new HashMap<>();
+            for (Entry entry : arity.all) {
+                values.computeIfAbsent(entry.tuple.get(position), k -> new LinkedHashSet<>()).add(entry);
+            }
+            arity.positions.set(position, values);
+            this.keys.computeIfAbsent(size, k -> new BitSet()).set(position);
+        }
+        return values;
+    }
+
+    private void removeEntry(ArityIndex arity, Entry entry) {
+        arity.all.remove(entry);
+        for (int position = 0; position < entry.tuple.size(); position++) {
+            Serializable component = entry.tuple.get(position);
+            Map<Object, LinkedHashSet<Entry>> values = arity.positions.get(position);
+            if (values == null)
+                continue;
+            LinkedHashSet<Entry> bucket = values.get(component);
+            bucket.remove(entry);
+            if (bucket.isEmpty())
+                values.remove(component);
+        }
+        if (arity.all.isEmpty())
+            this.arities.remove(entry.tuple.size());
+        this.size--;
+    }
+
+    /**
+     * Un champ de motif est concret s'il n'est ni un type ni un sous-motif :
+     * seuls les tuples ayant une valeur égale à cette position peuvent alors
+     * correspondre.
+     */
+    private static boolean isConcrete(Serializable component) {
+        return !(component instanceof Class) && !(component instanceof Tuple);
+    }
+}
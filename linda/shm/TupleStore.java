@@ -0,0 +1,75 @@
+package linda.shm;
+
+import linda.Tuple;
+
+/**
+ * Stockage persistant des tuples d'un espace partagé.
+ *
+ * L'espace signale chaque ajout et chaque retrait de tuple au stockage, sous
+ * le moniteur de la partition modifiée, puis appelle {@link #commit()} hors
+ * de tout verrou pour attendre que ses modifications soient durables.
+ *
+ * Un stockage qui contient déjà des tuples les restaure dans l'espace
+ * auquel il est rattaché ; il peut le faire arité par arité, au premier
+ * accès (voir {@link #prepare(int)}).
+ */
+public interface TupleStore {
+
+    /**
+     * Rattache le stockage à un espace. Appelé une fois, à la construction
+     * de l'espace.
+     *
+     * @param space l'espace dont les tuples sont stockés.
+     */
+    void attach(CentralizedLinda space);
+
+    /**
+     * Prépare le stockage avant une modification. Appelé hors de tout
+     * verrou de l'espace.
+     */
+    void open();
+
+    /**
+     * Enregistre l'ajout d'un tuple. L'appelant détient le moniteur de la
+     * partition.
+     *
+     * @param partition la partition modifiée.
+     * @param tuple     le tuple ajouté.
+     */
+    void written(Partition partition, Tuple tuple);
+
+    /**
+     * Enregistre le retrait d'un tuple. L'appelant détient le moniteur de
+     * la partition.
+     *
+     * @param partition la partition modifiée.
+     * @param tuple     le tuple retiré.
+     */
+    void taken(Partition partition, Tuple tuple);
+
+    /**
+     * Attend que les modifications enregistrées jusqu'ici soient durables.
+     * Appelé hors de tout verrou de l'espace.
+     */
+    void commit();
+
+    /**
+     * L'espace vient d'être chargé par un autre moyen (voir
+     * {@link CentralizedLinda#load(String)}) : le stockage repart de son état
+     * courant.
+     */
+    void reset();
+
+    /**
+     * S'assure que les tuples stockés d'une arité ont été restaurés dans
+     * l'espace. Appelé hors de tout verrou, avant tout accès à l'arité.
+     *
+     * @param arity l'arité.
+     */
+    void prepare(int arity);
+
+    /**
+     * S'assure que tous les tuples stockés ont été restaurés dans l'espace.
+     */
+    void prepareAll();
+}
@@ -0,0 +1,220 @@
+package linda.shm;
+
+import linda.Tuple;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Registre des évènements en attente, classés selon la forme de leur motif.
+ * La forme d'un motif est son arité et l'ensemble des positions où il porte
+ * une valeur concrète ; au sein d'une forme, les évènements sont regroupés
+ * par les valeurs de ces positions. Un tuple écrit ne consulte donc, pour
+ * chaque forme de son arité, que le groupe dont les valeurs concrètes sont
+ * les siennes.
+ *
+ * Cette classe n'est pas synchronisée : l'appelant doit en garantir l'accès
+ * exclusif.
+ */
+public class WaiterRegistry {
+
+    /**
+     * Positions concrètes d'un motif.
+     */
+    private static final class Shape {
+        private final int[] positions;
+
+        private Shape(int[] positions) {
+            this.positions = positions;
+        }
+
+        /** Valeurs d'un tuple (ou d'un motif) aux positions de la forme. */
+        private List<Object> key(Tuple tuple) {
+            Object[] values = new Object[this.positions.length];
+            for (int i = 0; i < this.positions.length; i++) {
+                values[i] = tuple.get(this.positions[i]);
+            }
+            return Arrays.asList(values);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Shape && Arrays.equals(this.positions, ((Shape) o).positions);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(this.positions);
+        }
+    }
+
+    /**
+     * Évènements en attente d'une même forme et de mêmes valeurs concrètes,
+     * dans l'ordre d'arrivée. La liste est chaînée par les évènements
+     * eux-mêmes, si bien qu'un évènement s'en retire en temps constant.
+     */
+    static final class Bucket {
+        private Event head;
+        private Event tail;
+        /** Emplacement du groupe, pour l'oublier une fois vide. */
+        private final int arity;
+        private final Shape shape;
+        private final List<Object> key;
+
+        private Bucket(int arity, Shape shape, List<Object> key) {
+            this.arity = arity;
+            this.shape = shape;
+            this.key = key;
+        }
+    }
+
+    /** Par arité, puis par forme, puis par valeurs concrètes : les évènements dans l'ordre d'arrivée. */
+    private final Map<Integer, Map<Shape, Map<List<Object>, Bucket>>> arities = new HashMap<>();
+    private int size = 0;
+
+    /**
+     * Enregistre un évènement en attente.
+     *
+     * @param event l'évènement à enregistrer.
+     */
+    public void add(Event event) {
+        Tuple motif = event.getMotif();
+        Shape shape = shapeOf(motif);
+        List<Object> key = shape.key(motif);
+        Bucket bucket = this.arities.computeIfAbsent(motif.size(), k -> new HashMap<>())
+                .computeIfAbsent(shape, k -> new HashMap<>())
+                .computeIfAbsent(key, k -> new Bucket(motif.size(), shape, key));
+        event.bucket = bucket;
+        event.prev = bucket.tail;
+        event.next = null;
+        if (bucket.tail == null)
+            bucket.head = event;
+        else
+            bucket.tail.next = event;
+        bucket.tail = event;
+        this.size++;
+    }
+
+    /**
+     * Retire un évènement du registre, en temps constant.
+     *
+     * @param event l'évènement à retirer.
+     * @return vrai si l'évènement était enregistré.
+     */
+    public boolean remove(Event event) {
+        Bucket bucket = event.bucket;
+        if (bucket == null)
+            return false;
+        if (event.prev == null)
+            bucket.head = event.next;
+        else
+            event.prev.next = event.next;
+        if (event.next == null)
+            bucket.tail = event.prev;
+        else
+            event.next.prev = event.prev;
+        event.bucket = null;
+        event.prev = null;
+        event.next = null;
+        // Oublie les groupes et formes qui n'ont plus d'évènement
+        if (bucket.head == null) {
+            Map<Shape, Map<List<Object>, Bucket>> shapes = this.arities.get(bucket.arity);
+            Map<List<Object>, Bucket> keys = shapes.get(bucket.shape);
+            keys.remove(bucket.key);
+            if (keys.isEmpty()) {
+                shapes.remove(bucket.shape);
+                if (shapes.isEmpty())
+                    this.arities.remove(bucket.arity);
+            }
+        }
+        this.size--;
+        return true;
+    }
+
+    /**
+     * Retire et renvoie tous les évènements dont le motif correspond au
+     * tuple, après les avoir déclenchés (voir {@link Event#fire()}). Les
+     * évènements annulés rencontrés sont retirés sans être renvoyés.
+     *
+     * @param tuple le tuple écrit.
+     * @return les évènements retirés, éventuellement aucun.
+     */
+    public List<Event> removeAllMatching(Tuple tuple) {
+        List<Event> matching = new ArrayList<>();
+        for (Bucket bucket : this.buckets(tuple)) {
+            Event event = bucket.head;
+            while (event != null) {
+                Event next = event.next;
+                if (event.isMatching(tuple)) {
+                    this.remove(event);
+                    if (event.fire())
+                        matching.add(event);
+                }
+                event = next;
+            }
+        }
+        return matching;
+    }
+
+    /**
+     * Renvoie, sans le retirer, le plus ancien évènement en attente dont le
+     * motif correspond au tuple (voir {@link Event#getSeq()}). Les évènements
+     * annulés rencontrés sont retirés au passage.
+     * Chaque groupe étant dans l'ordre d'arrivée, seul le premier évènement
+     * correspondant de chaque groupe est candidat : le coût ne dépend que du
+     * nombre de formes, pas du nombre d'évènements en attente.
+     *
+     * @param tuple le tuple écrit.
+     * @return l'évènement, null si aucun ne correspond.
+     */
+    public Event oldestMatching(Tuple tuple) {
+        Event oldest = null;
+        for (Bucket bucket : this.buckets(tuple)) {
+            Event event = bucket.head;
+            while (event != null) {
+                Event next = event.next;
+                if (event.isCancelled()) {
+                    this.remove(event);
+                } else if (event.isMatching(tuple)) {
+                    if (oldest == null || event.getSeq() < oldest.getSeq())
+                        oldest = event;
+                    break;
+                }
+                event = next;
+            }
+        }
+        return oldest;
+    }
+
+    /** Groupes pouvant contenir des évènements correspondant au tuple : un par forme au plus. */
+    private List<Bucket> buckets(Tuple tuple) {
+        Map<Shape, Map<List<Object>, Bucket>> shapes = this.arities.get(tuple.size());
+        if (shapes == null)
+            return Collections.emptyList();
+        List<Bucket> buckets = new ArrayList<>(shapes.size());
+        for (Map.Entry<Shape, Map<List<Object>, Bucket>> shape : shapes.entrySet()) {
+            Bucket bucket = shape.getValue().get(shape.getKey().key(tuple));
+            if (bucket != null)
+                buckets.add(bucket);
+        }
+        return buckets;
+    }
+
+    /**
+     * @return le nombre d'évènements en attente.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    private static Shape shapeOf(Tuple motif) {
+        int[] positions = new int[motif.size()];
+        int count = 0;
+        for (int position = 0; position < motif.size(); position++) {
+            Serializable component = motif.get(position);
+            if (!(component instanceof Class) && !(component instanceof Tuple))
+                positions[count++] = position;
+        }
+        return new Shape(Arrays.copyOf(positions, count));
+    }
+}
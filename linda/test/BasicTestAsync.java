@@ -0,0 +1,33 @@
+package linda.test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import linda.*;
+
+/** The asynchronous API: operations return futures at once, and no thread waits for the tuples. */
+public class BasicTestAsync {
+
+    public static void main(String[] a) throws Exception {
+        final AsyncLinda linda = new linda.shm.CentralizedLinda();
+        // final AsyncLinda linda = new linda.server.LindaClient("//localhost:4000/aaa");
+
+        CompletableFuture<Void> take = linda.takeAsync(new Tuple(Integer.class, String.class))
+            .thenAccept(t -> System.out.println("(1) take: " + t));
+        CompletableFuture<Void> takeN = linda.takeAsync(new Tuple(String.class, Integer.class), 2)
+            .thenAccept(ts -> System.out.println("(2) take 2: " + ts));
+        CompletableFuture<Void> timed = linda.readAsync(new Tuple(Double.class), 200, TimeUnit.MILLISECONDS)
+            .thenAccept(t -> System.out.println("(3) timed read: " + t));
+
+        Tuple t1 = new Tuple(4, "foo");
+        System.out.println("(0) write: " + t1);
+        Tuple t2 = new Tuple("hello", 15);
+        System.out.println("(0) write: " + t2);
+        Tuple t3 = new Tuple("world", 16);
+        System.out.println("(0) write: " + t3);
+        CompletableFuture.allOf(linda.writeAsync(t1), linda.writeAsync(t2), linda.writeAsync(t3)).join();
+
+        CompletableFuture.allOf(take, takeN, timed).join();
+        System.out.println("(0) left: " + linda.readAllAsync(new Tuple(Object.class, Object.class)).join());
+    }
+}
@@ -0,0 +1,67 @@
+package linda.test;
+
+import java.io.Serializable;
+import java.time.LocalDate;
+import java.util.ArrayList;
+
+import linda.*;
+
+/** Encodes tuples with TupleCodec and decodes them back: built-in, custom and serialized values. */
+public class BasicTestCodec {
+
+    enum Color { RED, GREEN }
+
+    /** A value with a registered encoding. */
+    static final class Point implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final int x, y;
+
+        Point(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Point && ((Point) o).x == x && ((Point) o).y == y;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * x + y;
+        }
+
+        @Override
+        public String toString() {
+            return "(" + x + "," + y + ")";
+        }
+    }
+
+    public static void main(String[] a) throws Exception {
+        TupleCodec.register(1, Point.class,
+                            (p, out) -> { out.writeInt(p.x); out.writeInt(p.y); },
+                            in -> new Point(in.readInt(), in.readInt()));
+
+        ArrayList<Serializable> list = new ArrayList<>();
+        list.add("serialized");
+        list.add(42);
+
+        Tuple[] tuples = {
+            new Tuple(4, 5),
+            new Tuple("hello", 15L, true, 'c', 2.5),
+            new Tuple(Color.GREEN, new Tuple(1, "nested")),
+            new Tuple(Integer.class, String.class, Color.class),
+            new Tuple("custom", new Point(3, 4)),
+            new Tuple("serialized", LocalDate.of(2024, 1, 31), list),
+        };
+        for (Tuple t : tuples) {
+            byte[] bytes = TupleCodec.encode(t);
+            Tuple back = TupleCodec.decode(bytes);
+            System.out.println(t + " -> " + bytes.length + " bytes -> " + back + (back.equals(t) ? "" : " DIFFERENT"));
+        }
+
+        Tuple template = new Tuple("custom", Point.class);
+        Tuple t = TupleCodec.decode(TupleCodec.encode(tuples[4]));
+        System.out.println(t + " matches " + template + ": " + t.matches(template));
+    }
+}
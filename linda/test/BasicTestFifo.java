@@ -0,0 +1,39 @@
+package linda.test;
+
+import linda.*;
+import linda.shm.CentralizedLinda;
+
+/** Takers waiting for the same template get the written tuples in the order they started waiting. */
+public class BasicTestFifo {
+
+    public static void main(String[] a) throws Exception {
+        final CentralizedLinda linda = new CentralizedLinda();
+
+        Thread[] takers = new Thread[4];
+        for (int i = 0; i < takers.length; i++) {
+            final int n = i + 1;
+            takers[i] = new Thread() {
+                public void run() {
+                    Tuple res = linda.take(new Tuple("job", Integer.class));
+                    System.out.println("(" + n + ") Resultat:" + res);
+                }
+            };
+            takers[i].start();
+            // The takers start waiting in order: (1) first
+            while (linda.waitingTakers() < n) {
+                Thread.sleep(10);
+            }
+        }
+
+        for (int i = 1; i <= takers.length; i++) {
+            Tuple t = new Tuple("job", i);
+            System.out.println("(0) write: " + t);
+            linda.write(t);
+            Thread.sleep(50);
+        }
+        for (Thread t : takers) {
+            t.join();
+        }
+        linda.debug("(0)");
+    }
+}
@@ -0,0 +1,48 @@
+package linda.test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import linda.*;
+import linda.shm.CentralizedLinda;
+import linda.shm.MappedTupleStore;
+
+/** Keeps tuples in a MappedTupleStore, then finds them again from another process, as after a restart. */
+public class BasicTestMapped {
+
+    public static void main(String[] a) throws Exception {
+        if (a.length == 2 && a[0].equals("restart")) {
+            restart(a[1]);
+            return;
+        }
+        File dir = Files.createTempDirectory("linda-mapped").toFile();
+        File file = new File(dir, "tuples");
+        try {
+            Linda linda = new CentralizedLinda(new MappedTupleStore(file.getPath()));
+            for (int i = 0; i < 5; i++) {
+                linda.write(new Tuple(i, "foo"));
+            }
+            linda.write(new Tuple("hello", 15));
+            System.out.println("(1) take: " + linda.take(new Tuple(2, String.class)));
+            linda.debug("(1)");
+
+            String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+            Process restarted = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                                                   BasicTestMapped.class.getName(), "restart", file.getPath())
+                .inheritIO().start();
+            restarted.waitFor();
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private static void restart(String file) {
+        Linda linda = new CentralizedLinda(new MappedTupleStore(file));
+        System.out.println("(2) readAll: " + linda.readAll(new Tuple(Integer.class, String.class)));
+        System.out.println("(2) read: " + linda.read(new Tuple(String.class, Integer.class)));
+        linda.debug("(2)");
+    }
+}
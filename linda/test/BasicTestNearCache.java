@@ -0,0 +1,49 @@
+package linda.test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import linda.*;
+import linda.server.LindaClient;
+import linda.server.LindaServer;
+import linda.shm.CentralizedLinda;
+
+/** A client with a near cache: repeated reads are served locally until a write changes their result. */
+public class BasicTestNearCache {
+
+    public static void main(String[] a) throws Exception {
+        File dir = Files.createTempDirectory("linda-nearcache").toFile();
+        LindaServer server = new LindaServer(new CentralizedLinda(new File(dir, "backup").getPath()), 0);
+        server.start();
+        LindaClient cached = new LindaClient("//localhost:" + server.port(), 100);
+        LindaClient other = new LindaClient("//localhost:" + server.port());
+        try {
+            Tuple motif = new Tuple("cfg", Integer.class);
+            other.write(new Tuple("cfg", 1));
+            for (int i = 0; i < 3; i++) {
+                System.out.println("(1) tryRead: " + cached.tryRead(motif) + " readAll: " + cached.readAll(motif));
+            }
+            System.out.println("(1) hits: " + cached.nearCacheHits() + ", misses: " + cached.nearCacheMisses());
+
+            System.out.println("(2) replaces [ \"cfg\" 1 ] with [ \"cfg\" 2 ]");
+            other.take(new Tuple("cfg", 1));
+            other.write(new Tuple("cfg", 2));
+            // The invalidation comes from the server: it may take a moment
+            Thread.sleep(100);
+            System.out.println("(1) tryRead: " + cached.tryRead(motif) + " readAll: " + cached.readAll(motif));
+
+            // The client's own writes show at once
+            cached.write(new Tuple("cfg", 3));
+            System.out.println("(1) readAll after own write: " + cached.readAll(motif));
+            System.out.println("(1) hits: " + cached.nearCacheHits() + ", misses: " + cached.nearCacheMisses());
+        } finally {
+            cached.close();
+            other.close();
+            server.close();
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+}
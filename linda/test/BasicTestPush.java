@@ -0,0 +1,75 @@
+package linda.test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import linda.*;
+import linda.Linda.eventMode;
+import linda.Linda.eventTiming;
+import linda.server.LindaClient;
+import linda.server.LindaServer;
+import linda.shm.CentralizedLinda;
+
+/** Events registered through a client: the server pushes their firings, in order, as other clients write. */
+public class BasicTestPush {
+
+    private static class MyCallback implements Callback {
+        private final String name;
+        private final Linda linda;
+        private final eventMode mode;
+        private final eventTiming timing;
+        private final Tuple motif;
+
+        MyCallback(String name, Linda linda, eventMode mode, eventTiming timing, Tuple motif) {
+            this.name = name;
+            this.linda = linda;
+            this.mode = mode;
+            this.timing = timing;
+            this.motif = motif;
+        }
+
+        public void call(Tuple t) {
+            System.out.println(name + " Got " + t);
+            // Registers again, to get the next one
+            linda.eventRegister(mode, timing, motif, this);
+        }
+    }
+
+    public static void main(String[] a) throws Exception {
+        File dir = Files.createTempDirectory("linda-push").toFile();
+        LindaServer server = new LindaServer(new CentralizedLinda(new File(dir, "backup").getPath()), 0);
+        server.start();
+        LindaClient subscriber = new LindaClient("//localhost:" + server.port());
+        LindaClient writer = new LindaClient("//localhost:" + server.port());
+        try {
+            Tuple motif = new Tuple(Integer.class, String.class);
+            subscriber.eventRegister(eventMode.READ, eventTiming.FUTURE, motif,
+                                     new MyCallback("(1)", subscriber, eventMode.READ, eventTiming.FUTURE, motif));
+            Tuple jobs = new Tuple("job", Integer.class);
+            subscriber.eventRegister(eventMode.TAKE, eventTiming.IMMEDIATE, jobs,
+                                     new MyCallback("(2)", subscriber, eventMode.TAKE, eventTiming.IMMEDIATE, jobs));
+            Thread.sleep(200);
+
+            for (int i = 1; i <= 3; i++) {
+                Tuple t1 = new Tuple(i, "foo");
+                System.out.println("(0) write: " + t1);
+                writer.write(t1);
+                Tuple t2 = new Tuple("job", i);
+                System.out.println("(0) write: " + t2);
+                writer.write(t2);
+                Thread.sleep(100);
+            }
+            Thread.sleep(500);
+            System.out.println("(0) jobs left: " + writer.readAll(jobs));
+            System.out.println("(0) foo left: " + writer.readAll(motif));
+        } finally {
+            subscriber.close();
+            writer.close();
+            server.close();
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package linda.test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import linda.*;
+import linda.server.LindaClient;
+import linda.server.LindaServer;
+import linda.server.ReplicationBackup;
+import linda.server.ReplicationPrimary;
+import linda.shm.CentralizedLinda;
+import linda.shm.LogStore;
+
+/** A backup follows a primary server; once the primary is gone, it takes over with the same tuples. */
+public class BasicTestReplication {
+
+    public static void main(String[] a) throws Exception {
+        File dir = Files.createTempDirectory("linda-replication").toFile();
+        try {
+            LogStore store = new LogStore(new File(dir, "primary").getPath());
+            CentralizedLinda primarySpace = new CentralizedLinda(store);
+            ReplicationPrimary replication = new ReplicationPrimary(primarySpace, store, 0);
+            LindaServer primary = new LindaServer(primarySpace, 0);
+            primary.start();
+
+            CentralizedLinda backupSpace = new CentralizedLinda(new File(dir, "backup").getPath());
+            ReplicationBackup backup = new ReplicationBackup(backupSpace, "localhost:" + replication.port());
+
+            LindaClient linda = new LindaClient("//localhost:" + primary.port());
+            for (int i = 0; i < 5; i++) {
+                linda.write(new Tuple(i, "foo"));
+            }
+            System.out.println("(1) take: " + linda.take(new Tuple(2, String.class)));
+            while (backup.applied() < replication.head()) {
+                Thread.sleep(10);
+            }
+            System.out.println("(1) backup applied record " + backup.applied() + " of " + replication.head());
+
+            // The primary fails
+            linda.close();
+            primary.close();
+            replication.close();
+            System.out.println("(2) primary stopped");
+
+            backup.awaitPrimaryLoss(2, TimeUnit.SECONDS);
+            backup.close();
+            LindaServer takeover = new LindaServer(backupSpace, 0);
+            takeover.start();
+            System.out.println("(2) backup took over at record " + backup.applied());
+
+            linda = new LindaClient("//localhost:" + takeover.port());
+            System.out.println("(2) readAll: " + linda.readAll(new Tuple(Integer.class, String.class)));
+            linda.write(new Tuple(5, "bar"));
+            System.out.println("(2) take: " + linda.take(new Tuple(5, String.class)));
+            linda.close();
+            takeover.close();
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+}
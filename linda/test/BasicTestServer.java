@@ -0,0 +1,75 @@
+package linda.test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import linda.*;
+import linda.server.LindaClient;
+import linda.server.LindaServer;
+import linda.shm.CentralizedLinda;
+
+/** BasicTest1 through the network: serves a tuplespace from this process and uses it through a client. */
+public class BasicTestServer {
+
+    public static void main(String[] a) throws Exception {
+        int port = a.length > 0 ? Integer.parseInt(a[0]) : 4000;
+        File dir = Files.createTempDirectory("linda-server").toFile();
+        LindaServer server = new LindaServer(new CentralizedLinda(new File(dir, "backup").getPath()), port);
+        server.start();
+        final LindaClient linda = new LindaClient("//localhost:" + server.port() + "/aaa");
+        try {
+            Thread taker = new Thread() {
+                public void run() {
+                    try {
+                        Thread.sleep(2);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                    Tuple motif = new Tuple(Integer.class, String.class);
+                    Tuple res = linda.take(motif);
+                    System.out.println("(1) Resultat:" + res);
+                    linda.debug("(1)");
+                }
+            };
+            taker.start();
+
+            Thread writer = new Thread() {
+                public void run() {
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+
+                    Tuple t1 = new Tuple(4, 5);
+                    System.out.println("(2) write: " + t1);
+                    linda.write(t1);
+
+                    Tuple t2 = new Tuple("hello", 15);
+                    System.out.println("(2) write: " + t2);
+                    linda.write(t2);
+
+                    Tuple t3 = new Tuple(4, "foo");
+                    System.out.println("(2) write: " + t3);
+                    linda.write(t3);
+
+                    linda.debug("(2)");
+                }
+            };
+            writer.start();
+
+            taker.join();
+            writer.join();
+            System.out.println("(0) readAll: " + linda.readAll(new Tuple(Object.class, Object.class)));
+            System.out.println("(0) tryTake: " + linda.tryTake(new Tuple(4, Integer.class)));
+            System.out.println("(0) left: " + linda.readAll(new Tuple(Object.class, Object.class)));
+        } finally {
+            linda.close();
+            server.close();
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package linda.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import linda.*;
+import linda.server.LindaClient;
+import linda.server.ShardedLindaClient;
+
+/** Starts three server processes on this machine and uses them as one sharded tuplespace. */
+public class BasicTestShards {
+
+    public static void main(String[] a) throws Exception {
+        int base = a.length > 0 ? Integer.parseInt(a[0]) : 4100;
+        File dir = Files.createTempDirectory("linda-shards").toFile();
+        List<Process> servers = new ArrayList<>();
+        String uris = "";
+        try {
+            for (int i = 1; i <= 3; i++) {
+                servers.add(startServer(base + i, new File(dir, "shard" + i).getPath()));
+                uris += (i > 1 ? "," : "") + "//localhost:" + (base + i) + "/LindaServer";
+            }
+            Thread.sleep(1500);
+            final ShardedLindaClient linda = new ShardedLindaClient(uris);
+
+            for (int i = 0; i < 30; i++) {
+                linda.write(new Tuple(i, "foo"));
+            }
+            for (int i = 1; i <= 3; i++) {
+                LindaClient shard = new LindaClient("//localhost:" + (base + i));
+                System.out.println("shard " + i + " holds " + shard.readAll(new Tuple(Integer.class, String.class)).size() + " tuples");
+                shard.close();
+            }
+            System.out.println("readAll: " + linda.readAll(new Tuple(Integer.class, String.class)).size() + " tuples");
+            System.out.println("routed take: " + linda.take(new Tuple(7, String.class)));
+
+            new Thread() {
+                public void run() {
+                    try {
+                        Thread.sleep(500);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                    linda.write(new Tuple("late", 1));
+                }
+            }.start();
+            System.out.println("fanned-out take: " + linda.take(new Tuple(String.class, Integer.class)));
+            linda.eventRegister(Linda.eventMode.TAKE, Linda.eventTiming.IMMEDIATE, new Tuple(Integer.class, String.class),
+                                t -> System.out.println("event: " + t));
+            Thread.sleep(500);
+            System.out.println("takeAll: " + linda.takeAll(new Tuple(Integer.class, String.class)).size() + " tuples");
+            linda.debug("(0)");
+            linda.close();
+        } finally {
+            for (Process p : servers) {
+                p.destroy();
+                p.waitFor();
+            }
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private static Process startServer(int port, String backup) throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        return new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                                  "linda.server.LindaServer", String.valueOf(port), backup)
+            .inheritIO().start();
+    }
+}
@@ -0,0 +1,41 @@
+package linda.test;
+
+import java.util.concurrent.TimeUnit;
+
+import linda.*;
+import linda.shm.CentralizedLinda;
+
+/** Timed take and read: a wait either gets its tuple in time or gives up, and leaves nothing behind. */
+public class BasicTestTimeout {
+
+    public static void main(String[] a) throws Exception {
+        final CentralizedLinda linda = new CentralizedLinda();
+
+        long start = System.nanoTime();
+        Tuple res = linda.take(new Tuple(Integer.class, String.class), 200, TimeUnit.MILLISECONDS);
+        System.out.println("(1) take after " + (System.nanoTime() - start) / 1000000 + " ms: " + res);
+
+        new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+                Tuple t1 = new Tuple(4, "foo");
+                System.out.println("(2) write: " + t1);
+                linda.write(t1);
+            }
+        }.start();
+
+        start = System.nanoTime();
+        res = linda.read(new Tuple(Integer.class, String.class), 2, TimeUnit.SECONDS);
+        System.out.println("(1) read after " + (System.nanoTime() - start) / 1000000 + " ms: " + res);
+
+        res = linda.read(new Tuple(String.class, Integer.class), 0, TimeUnit.MILLISECONDS);
+        System.out.println("(1) read without waiting: " + res);
+
+        System.out.println("(1) waiting: " + linda.waitingReaders() + " readers, " + linda.waitingTakers() + " takers");
+        System.out.println("(1) take: " + linda.take(new Tuple(Integer.class, String.class), 200, TimeUnit.MILLISECONDS));
+    }
+}
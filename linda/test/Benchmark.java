@@ -0,0 +1,293 @@
+package linda.test;
+
+import linda.*;
+import linda.shm.CentralizedLinda;
+
+import java.io.*;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/** Microbenchmarks of the tuple and tuplespace hot paths.
+ * Each benchmark runs warmup iterations, then measured iterations, and reports
+ * either a throughput (ops/s, all threads together) or the average time of a single call.
+ * Results are written as a JSON array, one entry per benchmark, thread count and space size,
+ * using the field names of JMH's JSON output so that the same tools can compare runs.
+ *
+ * Usage: java linda.test.Benchmark [-t 1,4] [-s 1000,100000] [-w 2] [-i 5] [-o results.json] [filter]
+ *  -t thread counts, -s space sizes, -w warmup iterations, -i measured iterations (1 s each),
+ *  -o output file (default: standard output), filter: only the benchmarks whose name contains it.
+ */
+public class Benchmark {
+
+    /** Body of a benchmark, called repeatedly by each thread. */
+    private interface Op {
+        void run(int thread) throws Exception;
+    }
+
+    /** A benchmark instance, set up for one space size and thread count. */
+    private static abstract class Bench {
+        /** Prepares the state; called once before warmup. */
+        void setup() throws Exception {}
+        /** Prepares a single-shot call; not measured. */
+        void prepare() throws Exception {}
+        abstract void run(int thread) throws Exception;
+        void teardown() throws Exception {}
+    }
+
+    private static final String[] WORDS = { "alpha", "beta", "gamma", "delta" };
+
+    private int[] threadCounts = { 1, 4 };
+    private int[] sizes = { 1000, 100000 };
+    private int warmups = 2;
+    private int iterations = 5;
+    private final List<String> results = new ArrayList<>();
+
+    public static void main(String[] a) throws Exception {
+        Benchmark b = new Benchmark();
+        String out = null;
+        String filter = "";
+        for (int i = 0; i < a.length; i++) {
+            switch (a[i]) {
+            case "-t": b.threadCounts = ints(a[++i]); break;
+            case "-s": b.sizes = ints(a[++i]); break;
+            case "-w": b.warmups = Integer.parseInt(a[++i]); break;
+            case "-i": b.iterations = Integer.parseInt(a[++i]); break;
+            case "-o": out = a[++i]; break;
+            default: filter = a[i];
+            }
+        }
+        b.runAll(filter);
+        String json = "[\n" + String.join(",\n", b.results) + "\n]\n";
+        if (out == null) {
+            System.out.print(json);
+        } else {
+            Files.write(new File(out).toPath(), json.getBytes("UTF-8"));
+        }
+    }
+
+    private void runAll(String filter) throws Exception {
+        final Tuple flat = new Tuple(1, "foo", 2.5, 'c');
+        final Tuple nested = new Tuple(1, new Tuple("foo", new Tuple(2, 3)), "bar");
+        final Tuple wild = new Tuple(Object.class, Serializable.class, Number.class, Comparable.class);
+        final Tuple flatTemplate = new Tuple(1, String.class, 2.5, Character.class);
+        final Tuple nestedTemplate = new Tuple(Integer.class, new Tuple(String.class, new Tuple(Integer.class, 3)), String.class);
+        final Tuple wildTemplate = new Tuple(Serializable.class, Object.class, Number.class, Object.class);
+        final Tuple wildTuple = new Tuple(1, "foo", 2.5, 'c');
+        throughput(filter, "Tuple.matches.flat", 0, t -> flat.matches(flatTemplate));
+        throughput(filter, "Tuple.matches.nested", 0, t -> nested.matches(nestedTemplate));
+        throughput(filter, "Tuple.matches.wildcard", 0, t -> wildTuple.matches(wildTemplate));
+        throughput(filter, "Tuple.matches.wildcardTemplate", 0, t -> wild.matches(wildTemplate));
+        throughput(filter, "Tuple.deepclone", 0, t -> nested.deepclone());
+        final byte[] encoded = TupleCodec.encode(nested);
+        throughput(filter, "TupleCodec.encode", 0, t -> TupleCodec.encode(nested));
+        throughput(filter, "TupleCodec.decode", 0, t -> TupleCodec.decode(encoded));
+        final String text = nested.toString();
+        throughput(filter, "Tuple.valueOf", 0, t -> Tuple.valueOf(text));
+
+        for (int size : sizes) {
+            throughput(filter, "CentralizedLinda.write", size, new SpaceOp(size) {
+                void run(int thread) {
+                    linda.write(new Tuple("w", thread, ThreadLocalRandom.current().nextInt()));
+                }
+            });
+            throughput(filter, "CentralizedLinda.tryRead", size, new SpaceOp(size) {
+                void run(int thread) {
+                    linda.tryRead(new Tuple("k", ThreadLocalRandom.current().nextInt(size), String.class));
+                }
+            });
+            throughput(filter, "CentralizedLinda.tryRead.wildcard", size, new SpaceOp(size) {
+                void run(int thread) {
+                    linda.tryRead(new Tuple(String.class, Integer.class, WORDS[ThreadLocalRandom.current().nextInt(WORDS.length)]));
+                }
+            });
+            // tryTake puts the tuple back, so that the space keeps its size.
+            throughput(filter, "CentralizedLinda.tryTake", size, new SpaceOp(size) {
+                void run(int thread) {
+                    Tuple taken = linda.tryTake(new Tuple("k", ThreadLocalRandom.current().nextInt(size), String.class));
+                    if (taken != null)
+                      linda.write(taken);
+                }
+            });
+            singleShot(filter, "CentralizedLinda.readAll", size, new SpaceOp(size) {
+                void run(int thread) {
+                    linda.readAll(new Tuple("k", Integer.class, String.class));
+                }
+            });
+            singleShot(filter, "CentralizedLinda.takeAll", size, new SpaceOp(size) {
+                void prepare() {
+                    if (linda.tryRead(new Tuple("k", Integer.class, String.class)) == null)
+                      fill();
+                }
+                void run(int thread) {
+                    linda.takeAll(new Tuple("k", Integer.class, String.class));
+                }
+            });
+        }
+    }
+
+    /** A benchmark on a CentralizedLinda holding <code>size</code> tuples ["k" i word]. */
+    private static abstract class SpaceOp extends Bench {
+        final int size;
+        CentralizedLinda linda;
+        Path dir;
+
+        SpaceOp(int size) {
+            this.size = size;
+        }
+
+        void setup() throws Exception {
+            dir = Files.createTempDirectory("linda-bench");
+            linda = new CentralizedLinda(dir.resolve("backup").toString());
+            fill();
+        }
+
+        void fill() {
+            for (int i = 0; i < size; i++) {
+                linda.write(new Tuple("k", i, WORDS[i % WORDS.length]));
+            }
+        }
+
+        void teardown() throws Exception {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path f : files) {
+                    Files.deleteIfExists(f);
+                }
+            }
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    private void throughput(String filter, String name, int size, final Op op) throws Exception {
+        throughput(filter, name, size, new Bench() {
+            void run(int thread) throws Exception {
+                op.run(thread);
+            }
+        });
+    }
+
+    /** Measures the throughput of an operation, for each thread count. */
+    private void throughput(String filter, String name, int size, Bench bench) throws Exception {
+        if (! name.contains(filter))
+          return;
+        for (int threads : threadCounts) {
+            bench.setup();
+            try {
+                for (int i = 0; i < warmups; i++) {
+                    measureThroughput(bench, threads);
+                }
+                double[] raw = new double[iterations];
+                for (int i = 0; i < iterations; i++) {
+                    raw[i] = measureThroughput(bench, threads);
+                }
+                report(name, "thrpt", threads, size, "ops/s", raw);
+            } finally {
+                bench.teardown();
+            }
+        }
+    }
+
+    /** Measures the average time of one call of an operation, each call being prepared separately. */
+    private void singleShot(String filter, String name, int size, Bench bench) throws Exception {
+        if (! name.contains(filter))
+          return;
+        bench.setup();
+        try {
+            for (int i = 0; i < warmups; i++) {
+                bench.prepare();
+                bench.run(0);
+            }
+            double[] raw = new double[iterations];
+            for (int i = 0; i < iterations; i++) {
+                bench.prepare();
+                long start = System.nanoTime();
+                bench.run(0);
+                raw[i] = (System.nanoTime() - start) / 1e6;
+            }
+            report(name, "ss", 1, size, "ms/op", raw);
+        } finally {
+            bench.teardown();
+        }
+    }
+
+    /** Runs the benchmark on <code>threads</code> threads for one second; returns the number of calls per second. */
+    private static double measureThroughput(final Bench bench, int threads) throws Exception {
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final CyclicBarrier start = new CyclicBarrier(threads + 1);
+        final long[] counts = new long[threads];
+        final Exception[] failure = new Exception[1];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            workers[t] = new Thread(() -> {
+                long n = 0;
+                try {
+                    start.await();
+                    while (! stop.get()) {
+                        bench.run(id);
+                        n++;
+                    }
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+                counts[id] = n;
+            });
+            workers[t].start();
+        }
+        start.await();
+        long begin = System.nanoTime();
+        Thread.sleep(1000);
+        stop.set(true);
+        long total = 0;
+        for (int t = 0; t < threads; t++) {
+            workers[t].join();
+            total += counts[t];
+        }
+        long elapsed = System.nanoTime() - begin;
+        if (failure[0] != null)
+          throw failure[0];
+        return total * 1e9 / elapsed;
+    }
+
+    private void report(String name, String mode, int threads, int size, String unit, double[] raw) {
+        double mean = 0;
+        for (double r : raw) {
+            mean += r;
+        }
+        mean /= raw.length;
+        double var = 0;
+        for (double r : raw) {
+            var += (r - mean) * (r - mean);
+        }
+        // 99.9% confidence half-interval, with the normal approximation
+        double error = raw.length > 1 ? 3.29 * Math.sqrt(var / (raw.length - 1)) / Math.sqrt(raw.length) : Double.NaN;
+        StringBuilder rawData = new StringBuilder();
+        for (double r : raw) {
+            if (rawData.length() > 0)
+              rawData.append(", ");
+            rawData.append(number(r));
+        }
+        results.add("  {\"benchmark\": \"" + name + "\", \"mode\": \"" + mode + "\", \"threads\": " + threads
+                    + ", \"params\": {\"size\": \"" + size + "\"}"
+                    + ", \"primaryMetric\": {\"score\": " + number(mean) + ", \"scoreError\": " + number(error)
+                    + ", \"scoreUnit\": \"" + unit + "\", \"rawData\": [[" + rawData + "]]}}");
+        System.err.println(String.format("%-40s %-5s t=%d size=%-7d %14.3f ± %.3f %s", name, mode, threads, size, mean, error, unit));
+    }
+
+    private static String number(double d) {
+        return Double.isNaN(d) ? "\"NaN\"" : String.format(Locale.ROOT, "%.3f", d);
+    }
+
+    private static int[] ints(String s) {
+        String[] parts = s.split(",");
+        int[] res = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            res[i] = Integer.parseInt(parts[i].trim());
+        }
+        return res;
+    }
+}
@@ -3,11 +3,17 @@ package linda.whiteboard;
 import java.awt.Shape;
 import java.awt.geom.Line2D;
 import java.awt.Color;
+import java.io.Serializable;
+
+import linda.TupleCodec;
 
 public class ColoredShape implements java.io.Serializable {
     public Shape shape;
     public Color color;
 
+    /** Identifier of the compact encoding of colored shapes (see {@link TupleCodec}). */
+    public static final int CODEC_ID = 1;
+
     public ColoredShape(Shape s, Color c) {
         shape = s;
         color = c;
@@ -17,4 +23,31 @@ public class ColoredShape implements java.io.Serializable {
         shape = new Line2D.Double(x1, y1, x2, y2);
         color = c;
     }
+
+    /** Registers the compact encoding of colored shapes: the color, then the ends of a line,
+     * or the Java serialization of any other shape. */
+    public static void registerCodec() {
+        TupleCodec.register(CODEC_ID, ColoredShape.class, (cs, out) -> {
+            out.writeInt(cs.color.getRGB());
+            if (cs.shape instanceof Line2D) {
+                Line2D line = (Line2D) cs.shape;
+                out.writeBoolean(true);
+                out.writeDouble(line.getX1());
+                out.writeDouble(line.getY1());
+                out.writeDouble(line.getX2());
+                out.writeDouble(line.getY2());
+            } else {
+                out.writeBoolean(false);
+                TupleCodec.writeValue((Serializable) cs.shape, out);
+            }
+        }, in -> {
+            Color color = new Color(in.readInt(), true);
+            Shape shape;
+            if (in.readBoolean())
+                shape = new Line2D.Double(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble());
+            else
+                shape = (Shape) TupleCodec.readValue(in);
+            return new ColoredShape(shape, color);
+        });
+    }
 }
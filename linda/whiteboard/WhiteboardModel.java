@@ -36,6 +36,10 @@ public class WhiteboardModel {
 
     private static final String KEY_WHITEBOARD = "Whiteboard";
 
+    static {
+        ColoredShape.registerCodec();
+    }
+
     /** The commands that can be sent on the tuple spaces. */
     enum Command { DRAW, ERASEALL, ROTATE };
 